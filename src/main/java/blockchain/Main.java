@@ -1,9 +1,11 @@
 package blockchain;
 
 import blockchain.http.HttpServer;
+import blockchain.miner.ParallelMiner;
 import blockchain.p2p.P2PNode;
 import blockchain.pojo.Block;
 import blockchain.pojo.BlockChain;
+import blockchain.store.BlockLog;
 import com.alibaba.fastjson.JSON;
 
 /**
@@ -26,8 +28,8 @@ public class Main {
                 //取出 http 和 WebSocket 端口号参数
                 int httpPort = Integer.parseInt(args[0]);
                 int wsPort = Integer.parseInt(args[1]);
-                // 创建区块链对象
-                BlockChain bc = new BlockChain();
+                // 创建区块链对象（配置了 -Dblockchain.data.dir 时，区块链会持久化到该目录）
+                BlockChain bc = new BlockChain(new ParallelMiner(), BlockLog.fromSystemProperties());
                 // 创建 P2P 节点
                 P2PNode p2p = new P2PNode(bc);
                 // 初始化 P2P 节点
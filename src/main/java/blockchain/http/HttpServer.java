@@ -1,9 +1,17 @@
 package blockchain.http;
 
+import blockchain.miner.MiningCoordinator;
+import blockchain.miner.MiningJob;
+import blockchain.msg.BlockStream;
+import blockchain.p2p.PeerManager;
+import blockchain.p2p.PeerOutbox;
 import blockchain.p2p.P2PNode;
 import blockchain.pojo.Block;
 import blockchain.pojo.BlockChain;
+import blockchain.store.BlockStore;
 import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.google.common.collect.Lists;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
@@ -14,9 +22,12 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -37,13 +48,45 @@ public class HttpServer {
      */
     private BlockChain blockChain;
 
+    /**
+     * 挖矿协调器
+     */
+    private MiningCoordinator miningCoordinator;
+
+    /**
+     * 等待挖矿任务结果的默认超时时间（毫秒）
+     */
+    private static final long DEFAULT_WAIT_MILLIS = 30000;
+
+    /**
+     * 分页查询区块时默认的每页区块数
+     */
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * 分页查询区块时每页最多的区块数
+     */
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * /blocks/latest 默认返回的区块数
+     */
+    private static final int DEFAULT_LATEST_BLOCKS = 10;
+
+    /**
+     * 游标中保存的区块哈希前缀长度
+     */
+    private static final int CURSOR_HASH_CHARS = 16;
+
     /**
      * 构造方法
      * @param p2p
      */
-    public HttpServer(P2PNode p2p) {
+    public HttpServer(final P2PNode p2p) {
         this.p2p = p2p;
         this.blockChain = p2p.getBlockChain();
+        // 挖出的区块交给区块链管理器追加，主链变化后由 P2P 节点广播
+        this.miningCoordinator = new MiningCoordinator(p2p.getChainManager());
     }
 
     public void initServer(int port) {
@@ -58,9 +101,14 @@ public class HttpServer {
             context.addServlet(new ServletHolder(new HelloServlet()), "/hello");
 
             context.addServlet(new ServletHolder(new BlocksServlet()), "/blocks");
+            context.addServlet(new ServletHolder(new LatestBlocksServlet()), "/blocks/latest");
+            context.addServlet(new ServletHolder(new BlockServlet()), "/block");
             context.addServlet(new ServletHolder(new MineBlockServlet()), "/mineBlock");
+            context.addServlet(new ServletHolder(new JobServlet()), "/job");
+            context.addServlet(new ServletHolder(new JobWaitServlet()), "/job/wait");
             context.addServlet(new ServletHolder(new AddPeerServlet()), "/addPeer");
             context.addServlet(new ServletHolder(new PeersServlet()), "/peers");
+            context.addServlet(new ServletHolder(new StatsServlet()), "/stats");
 
             server.start();
             server.join();
@@ -85,18 +133,200 @@ public class HttpServer {
 
     /**
      * 查看区块列表数据
+     * 没有参数时返回整个区块列表：分段写入响应（分块传输编码），不会一次生成整个区块列表的字符串。
+     * 带 from、to、limit、reverse、cursor 任一参数时分页返回：
+     * <ul>
+     * <li>from、to：高度范围（包含），默认从创世区块到最新区块</li>
+     * <li>limit：每页区块数，默认 100，最多 1000</li>
+     * <li>reverse=true：从 to 开始按高度从高到低返回</li>
+     * <li>cursor：上一页响应中的 next，从上一页的下一个区块继续；游标格式错误时返回 400，
+     * 上一页最后一个区块已经不在主链上（发生了重组）时返回 409</li>
+     * </ul>
+     * 分页响应为 {"blocks": [...], "next": "游标"}，没有下一页时 next 为空。
+     * 每页直接从主链快照按高度取出，响应大小只与每页区块数有关。
      */
     private class BlocksServlet extends HttpServlet {
         @Override
         protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
             resp.setCharacterEncoding("UTF-8");
-            String content = JSON.toJSONString(blockChain.getBlockChain());
-            resp.getWriter().println(content);
+            List<Block> blocks = blockChain.getBlockChain();
+            if (req.getParameter("from") == null && req.getParameter("to") == null && req.getParameter("limit") == null
+                    && req.getParameter("reverse") == null && req.getParameter("cursor") == null) {
+                PrintWriter writer = resp.getWriter();
+                BlockStream.writeJson(blocks, writer);
+                writer.println();
+                return;
+            }
+            boolean reverse = Boolean.parseBoolean(req.getParameter("reverse"));
+            int last = blocks.size() - 1;
+            int from;
+            int to;
+            int limit;
+            try {
+                from = intParam(req, "from", 0);
+                to = Math.min(intParam(req, "to", last), last);
+                limit = intParam(req, "limit", DEFAULT_PAGE_SIZE);
+            } catch (NumberFormatException ex) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                resp.getWriter().println(JSON.toJSONString("from、to、limit 参数错误"));
+                return;
+            }
+            if (from < 0 || limit < 1) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                resp.getWriter().println(JSON.toJSONString("from 不能小于 0，limit 必须大于 0"));
+                return;
+            }
+            limit = Math.min(limit, MAX_PAGE_SIZE);
+            // 本页第一个区块的高度
+            int start = reverse ? to : from;
+            String cursor = req.getParameter("cursor");
+            if (cursor != null && cursor.length() > 0) {
+                Integer position;
+                try {
+                    position = parseCursor(blocks, cursor, reverse);
+                } catch (IllegalArgumentException ex) {
+                    resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    resp.getWriter().println(JSON.toJSONString("cursor 参数格式错误"));
+                    return;
+                }
+                if (position == null) {
+                    resp.setStatus(HttpServletResponse.SC_CONFLICT);
+                    resp.getWriter().println(JSON.toJSONString("游标已失效，请重新从第一页查询"));
+                    return;
+                }
+                start = position;
+            }
+            Map<String, Object> page = new LinkedHashMap<String, Object>();
+            if (reverse) {
+                int end = Math.max(from, start - limit + 1);
+                page.put("blocks", start < end ? Collections.<Block>emptyList()
+                        : Lists.reverse(blocks.subList(end, start + 1)));
+                page.put("next", start >= end && end > from ? cursor(blocks.get(end)) : null);
+            } else {
+                int end = Math.min(to, start + limit - 1);
+                page.put("blocks", start > end ? Collections.<Block>emptyList() : blocks.subList(start, end + 1));
+                page.put("next", start <= end && end < to ? cursor(blocks.get(end)) : null);
+            }
+            resp.getWriter().println(JSON.toJSONString(page, SerializerFeature.WriteMapNullValue));
+        }
+    }
+
+    /**
+     * 查看最新的区块：/blocks/latest?n=10，按高度从低到高返回最新的 n 个区块（最多 1000 个）
+     */
+    private class LatestBlocksServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            resp.setCharacterEncoding("UTF-8");
+            int n;
+            try {
+                n = intParam(req, "n", DEFAULT_LATEST_BLOCKS);
+            } catch (NumberFormatException ex) {
+                n = -1;
+            }
+            if (n < 1) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                resp.getWriter().println(JSON.toJSONString("n 参数错误"));
+                return;
+            }
+            List<Block> blocks = blockChain.getBlockChain();
+            n = Math.min(Math.min(n, MAX_PAGE_SIZE), blocks.size());
+            resp.getWriter().println(JSON.toJSONString(blocks.subList(blocks.size() - n, blocks.size())));
+        }
+    }
+
+    /**
+     * 读取整数参数
+     * @param req 请求
+     * @param name 参数名
+     * @param defaultValue 没有该参数时的默认值
+     * @return 参数值
+     * @throws NumberFormatException 参数不是整数
+     */
+    private static int intParam(HttpServletRequest req, String name, int defaultValue) {
+        String value = req.getParameter(name);
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * 生成分页游标：上一页最后一个区块的高度和哈希前缀
+     * @param block 上一页最后一个区块
+     * @return 游标
+     */
+    private static String cursor(Block block) {
+        return block.getIndex() + "-" + block.getHash().substring(0, CURSOR_HASH_CHARS);
+    }
+
+    /**
+     * 解析分页游标
+     * @param blocks 主链快照
+     * @param cursor 游标
+     * @param reverse 是否从高到低分页
+     * @return 下一页第一个区块的高度；上一页最后一个区块已经不在主链上时返回 null
+     * @throws IllegalArgumentException 游标格式错误（不是本接口生成的游标）
+     */
+    private static Integer parseCursor(List<Block> blocks, String cursor, boolean reverse) {
+        int separator = cursor.indexOf('-');
+        if (separator <= 0 || cursor.length() != separator + 1 + CURSOR_HASH_CHARS) {
+            throw new IllegalArgumentException("游标格式错误：" + cursor);
+        }
+        String prefix = cursor.substring(separator + 1);
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                throw new IllegalArgumentException("游标格式错误：" + cursor);
+            }
+        }
+        // 高度不是非负整数时 parseInt 抛出的 NumberFormatException 也是 IllegalArgumentException
+        int index = Integer.parseInt(cursor.substring(0, separator));
+        if (index < 0) {
+            throw new IllegalArgumentException("游标格式错误：" + cursor);
         }
+        if (index >= blocks.size() || !blocks.get(index).getHash().startsWith(prefix)) {
+            return null;
+        }
+        return reverse ? index - 1 : index + 1;
     }
 
     /**
-     * 挖矿（生成新区块）
+     * 查询单个区块：/block?hash=区块哈希 或 /block?index=区块高度
+     */
+    private class BlockServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            resp.setCharacterEncoding("UTF-8");
+            String hash = req.getParameter("hash");
+            String index = req.getParameter("index");
+            Block block;
+            if (hash != null && hash.length() > 0) {
+                block = blockChain.getBlockByHash(hash);
+            } else if (index != null && index.length() > 0) {
+                try {
+                    block = blockChain.getBlockByIndex(Integer.parseInt(index));
+                } catch (NumberFormatException ex) {
+                    resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    resp.getWriter().println(JSON.toJSONString("index 参数错误"));
+                    return;
+                }
+            } else {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                resp.getWriter().println(JSON.toJSONString("需要 hash 或 index 参数"));
+                return;
+            }
+            if (block == null) {
+                resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                resp.getWriter().println(JSON.toJSONString("区块不存在"));
+                return;
+            }
+            resp.getWriter().println(JSON.toJSONString(block));
+        }
+    }
+
+    /**
+     * 挖矿（提交生成新区块的任务，立即返回任务信息）
      */
     private class MineBlockServlet extends HttpServlet {
 
@@ -111,17 +341,90 @@ public class HttpServer {
             // 从请求参数中获取新区块中将要保存的数据
             String data = req.getParameter("data");
             System.out.println("data=" + data);
-            // 生成新区块
-            Block newBlock = blockChain.generateNextBlock(data);
-            // 把生成的新区块追加到区块链末尾
-            blockChain.addBlock(newBlock);
-            // 向其他节点广播新区块
-            p2p.broadcastLatestBlock();
-            // 返回新区块的数据
-            resp.getWriter().println(JSON.toJSONString(newBlock));
+            if (data == null) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                resp.getWriter().println(JSON.toJSONString("data 参数不能为空"));
+                return;
+            }
+            // 把数据提交到待打包数据池，由挖矿协调器批量打包成新区块、追加到区块链末尾并广播
+            MiningJob job = miningCoordinator.submit(data);
+            if (job == null) {
+                resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                resp.getWriter().println(JSON.toJSONString("待打包数据池已满，请稍后重试"));
+                return;
+            }
+            // 记录见过这条数据，之后收到包含它的紧凑区块时不需要向对方请求
+            p2p.getCompactRelay().addPayload(data);
+            // 返回任务信息，客户端可以通过 /job 或 /job/wait 查询结果
+            resp.getWriter().println(JSON.toJSONString(job));
         }
     }
 
+    /**
+     * 查询挖矿任务
+     */
+    private class JobServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            resp.setCharacterEncoding("UTF-8");
+            MiningJob job = findJob(req, resp);
+            if (job != null) {
+                resp.getWriter().println(JSON.toJSONString(job));
+            }
+        }
+    }
+
+    /**
+     * 等待挖矿任务结束后返回结果（超时则返回任务当前状态）
+     */
+    private class JobWaitServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            resp.setCharacterEncoding("UTF-8");
+            MiningJob job = findJob(req, resp);
+            if (job == null) {
+                return;
+            }
+            long timeout = DEFAULT_WAIT_MILLIS;
+            String timeoutParam = req.getParameter("timeout");
+            if (timeoutParam != null && timeoutParam.length() > 0) {
+                try {
+                    timeout = Long.parseLong(timeoutParam);
+                } catch (NumberFormatException ex) {
+                    resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    resp.getWriter().println(JSON.toJSONString("timeout 参数错误"));
+                    return;
+                }
+            }
+            try {
+                job.await(timeout);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            resp.getWriter().println(JSON.toJSONString(job));
+        }
+    }
+
+    /**
+     * 根据请求参数 id 查找挖矿任务，找不到时直接写出错误响应
+     * @return 挖矿任务，找不到时返回 null
+     */
+    private MiningJob findJob(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        MiningJob job = null;
+        try {
+            job = miningCoordinator.getJob(Long.parseLong(req.getParameter("id")));
+        } catch (NumberFormatException ex) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            resp.getWriter().println(JSON.toJSONString("id 参数错误"));
+            return null;
+        }
+        if (job == null) {
+            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            resp.getWriter().println(JSON.toJSONString("任务不存在"));
+        }
+        return job;
+    }
+
     /**
      * 连接新节点
      */
@@ -156,6 +459,27 @@ public class HttpServer {
                 Map<String, String> peerMap = new HashMap<String, String>();
                 peerMap.put("remoteHost", address.getHostName());
                 peerMap.put("remotePort", String.valueOf(address.getPort()));
+                PeerManager.Peer peer = p2p.getPeerManager().getPeer(socket);
+                if (peer != null) {
+                    peerMap.put("nodeId", peer.getNodeId());
+                    peerMap.put("direction", peer.isOutbound() ? "outbound" : "inbound");
+                    peerMap.put("address", peer.getAddress());
+                    peerMap.put("score", String.format("%.1f", peer.score()));
+                    peerMap.put("rttMs", String.format("%.3f", peer.getRttMillis()));
+                    peerMap.put("usefulBlocks", String.valueOf(peer.getUsefulBlocks()));
+                    peerMap.put("invalidBlocks", String.valueOf(peer.getInvalidBlocks()));
+                    peerMap.put("duplicateBlocks", String.valueOf(peer.getDuplicateBlocks()));
+                }
+                PeerOutbox outbox = p2p.getOutbound().get(socket);
+                if (outbox != null) {
+                    peerMap.put("queueDepth", String.valueOf(outbox.getQueueDepth()));
+                    peerMap.put("queuedBytes", String.valueOf(outbox.getQueuedBytes()));
+                    peerMap.put("sentMessages", String.valueOf(outbox.getSentMessages()));
+                    peerMap.put("droppedMessages", String.valueOf(outbox.getDroppedMessages()));
+                    peerMap.put("coalescedMessages", String.valueOf(outbox.getCoalescedMessages()));
+                    peerMap.put("avgSendLatencyMs", String.format("%.3f", outbox.getAvgSendLatencyMillis()));
+                    peerMap.put("maxSendLatencyMs", String.format("%.3f", outbox.getMaxSendLatencyMillis()));
+                }
                 peers.add(peerMap);
             }
             String content = JSON.toJSONString(peers);
@@ -163,6 +487,69 @@ public class HttpServer {
         }
     }
 
+    /**
+     * 节点运行统计
+     */
+    private class StatsServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            resp.setCharacterEncoding("UTF-8");
+            Map<String, Object> stats = new LinkedHashMap<String, Object>();
+            stats.put("minerThreads", blockChain.getMiner().getWorkers());
+            stats.put("hashRate", blockChain.getMiner().getLastHashRate());
+            stats.put("abortedMining", blockChain.getAbortedMiningCount());
+            stats.put("staleBlocks", blockChain.getStaleBlockCount());
+            stats.put("sideBlocks", blockChain.getSideBlockCount());
+            BlockStore store = blockChain.getStore();
+            if (store.cacheStats() != null) {
+                stats.put("hotBlocks", store.hotSize());
+                stats.put("coldCacheHits", store.cacheStats().hitCount());
+                stats.put("coldCacheMisses", store.cacheStats().missCount());
+            }
+            stats.put("chainQueueDepth", p2p.getChainManager().getQueueDepth());
+            stats.put("chainCommands", p2p.getChainManager().getProcessedCount());
+            stats.put("chainBatches", p2p.getChainManager().getBatchCount());
+            stats.put("chainDropped", p2p.getChainManager().getDroppedCount());
+            stats.put("downloadRequestedChunks", p2p.getDownloader().getRequestedChunks());
+            stats.put("downloadReassignedChunks", p2p.getDownloader().getReassignedChunks());
+            stats.put("downloadTimeouts", p2p.getDownloader().getTimedOutRequests());
+            stats.put("downloadedBlocks", p2p.getDownloader().getDownloadedBlocks());
+            stats.put("gossipSuppressedBlocks", p2p.getGossip().getSuppressedBlocks());
+            stats.put("gossipSuppressedRelays", p2p.getGossip().getSuppressedRelays());
+            stats.put("gossipSuppressedRequests", p2p.getGossip().getSuppressedRequests());
+            int outboundQueued = 0;
+            long outboundDropped = 0;
+            long outboundCoalesced = 0;
+            for (PeerOutbox outbox : p2p.getOutbound().getOutboxes()) {
+                outboundQueued += outbox.getQueueDepth();
+                outboundDropped += outbox.getDroppedMessages();
+                outboundCoalesced += outbox.getCoalescedMessages();
+            }
+            stats.put("outboundQueued", outboundQueued);
+            stats.put("outboundDropped", outboundDropped);
+            stats.put("outboundCoalesced", outboundCoalesced);
+            stats.put("peersEvicted", p2p.getPeerManager().getEvictedPeers());
+            stats.put("peersRejected", p2p.getPeerManager().getRejectedPeers());
+            stats.put("peerReconnects", p2p.getPeerManager().getReconnects());
+            stats.put("compactSent", p2p.getCompactRelay().getSentAnnouncements());
+            stats.put("compactBytesSaved", p2p.getCompactRelay().getSavedBytes());
+            stats.put("compactAssembled", p2p.getCompactRelay().getAssembledBlocks());
+            stats.put("compactFetched", p2p.getCompactRelay().getFetchedBlocks());
+            stats.put("compactFetchedPayloads", p2p.getCompactRelay().getFetchedPayloads());
+            stats.put("compactFailed", p2p.getCompactRelay().getFailedBlocks());
+            stats.put("payloadCacheSize", p2p.getCompactRelay().getCachedPayloads());
+            for (Map.Entry<String, Long> entry : p2p.getIngress().getRejected().entrySet()) {
+                String stage = entry.getKey();
+                stats.put("ingressRejected" + Character.toUpperCase(stage.charAt(0)) + stage.substring(1), entry.getValue());
+            }
+            stats.put("pendingPayloads", miningCoordinator.getPool().size());
+            stats.put("pendingBytes", miningCoordinator.getPool().bytes());
+            stats.put("rejectedPayloads", miningCoordinator.getPool().rejected());
+            stats.put("committedPayloads", miningCoordinator.getCommittedPayloads());
+            resp.getWriter().println(JSON.toJSONString(stats));
+        }
+    }
+
     // ws://172.18.0.82:7001
 
     public static void main(String[] args) {
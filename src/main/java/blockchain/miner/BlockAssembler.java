@@ -0,0 +1,111 @@
+package blockchain.miner;
+
+import com.alibaba.fastjson.JSON;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 区块组装器：把待打包数据池中的一批数据组装成一个区块的 data
+ * 批量区块的 data 是数据列表的 JSON 数组文本，区块哈希的原像规则不变，
+ * 旧的单条数据区块仍然合法。
+ * @author fanbin
+ * @date 2020/1/10
+ */
+public class BlockAssembler {
+
+    /**
+     * 配置每个区块最多数据条数的系统属性名
+     */
+    public static final String MAX_PAYLOADS_PROPERTY = "blockchain.block.maxPayloads";
+
+    /**
+     * 配置每个区块最多数据字节数的系统属性名
+     */
+    public static final String MAX_BYTES_PROPERTY = "blockchain.block.maxBytes";
+
+    /**
+     * 每个区块最多数据条数
+     */
+    private final int maxPayloads;
+
+    /**
+     * 每个区块最多数据字节数
+     */
+    private final long maxBytes;
+
+    /**
+     * 构造方法：上限取系统属性，默认每个区块最多 1000 条、1MB 数据
+     */
+    public BlockAssembler() {
+        this(Integer.getInteger(MAX_PAYLOADS_PROPERTY, 1000),
+                Long.getLong(MAX_BYTES_PROPERTY, 1024 * 1024L));
+    }
+
+    /**
+     * 构造方法
+     * @param maxPayloads 每个区块最多数据条数
+     * @param maxBytes 每个区块最多数据字节数
+     */
+    public BlockAssembler(int maxPayloads, long maxBytes) {
+        if (maxPayloads < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("区块容量上限必须大于 0");
+        }
+        this.maxPayloads = maxPayloads;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 从数据池中取出下一批数据（池为空时等待）
+     * @param pool 待打包数据池
+     * @return 一批数据
+     * @throws InterruptedException
+     */
+    public List<PendingDataPool.Entry> nextBatch(PendingDataPool pool) throws InterruptedException {
+        return pool.takeBatch(maxPayloads, maxBytes);
+    }
+
+    /**
+     * 把一批数据编码为区块的 data
+     * @param batch 一批数据
+     * @return 区块 data
+     */
+    public static String encode(List<PendingDataPool.Entry> batch) {
+        List<String> payloads = new ArrayList<String>(batch.size());
+        for (PendingDataPool.Entry entry : batch) {
+            payloads.add(entry.getPayload());
+        }
+        return encodePayloads(payloads);
+    }
+
+    /**
+     * 把数据列表编码为区块的 data
+     * @param payloads 数据
+     * @return 区块 data
+     */
+    public static String encodePayloads(List<String> payloads) {
+        return JSON.toJSONString(payloads);
+    }
+
+    /**
+     * 把区块的 data 解码为数据列表
+     * 只有重新编码后与原文完全相同时才认为是批量区块，这样按数据列表重新组装出的 data 一定与原区块相同。
+     * @param data 区块 data
+     * @return 数据列表，不是批量区块（旧的单条数据区块、创世区块）时返回 null
+     */
+    public static List<String> decode(String data) {
+        if (data == null || !data.startsWith("[")) {
+            return null;
+        }
+        List<String> payloads;
+        try {
+            payloads = JSON.parseArray(data, String.class);
+        } catch (Exception ex) {
+            return null;
+        }
+        if (payloads == null || payloads.contains(null) || !encodePayloads(payloads).equals(data)) {
+            return null;
+        }
+        return payloads;
+    }
+}
@@ -0,0 +1,186 @@
+package blockchain.miner;
+
+import blockchain.pojo.Block;
+import blockchain.pojo.BlockChain;
+import blockchain.pojo.ChainManager;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 挖矿协调器
+ * 提交的数据先进入待打包数据池，协调线程每次从池中取出一批数据组装成一个区块并挖矿，
+ * 挖矿期间新提交的数据会进入下一个区块。区块生产是串行的，不会再因为并发请求
+ * 同时读取 getLastBlock() 而挖出互相冲突的兄弟区块；HTTP 线程只负责提交任务。
+ * 挖出的区块交给区块链管理器追加，广播由管理器的事件触发。
+ * @author fanbin
+ * @date 2020/1/9
+ */
+public class MiningCoordinator {
+
+    /**
+     * 最多保留多少个任务供查询
+     */
+    private static final int MAX_TRACKED_JOBS = 10000;
+
+    private final ChainManager chainManager;
+
+    /**
+     * 待打包数据池
+     */
+    private final PendingDataPool pool = new PendingDataPool();
+
+    /**
+     * 区块组装器
+     */
+    private final BlockAssembler assembler;
+
+    /**
+     * 协调线程：串行化区块生产
+     */
+    private final Thread worker;
+
+    /**
+     * 任务编号生成器
+     */
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    /**
+     * 已打包进区块的数据条数
+     */
+    private final AtomicLong committedPayloads = new AtomicLong();
+
+    /**
+     * 最近的任务，按编号查询
+     */
+    private final Cache<Long, MiningJob> jobs = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TRACKED_JOBS)
+            .build();
+
+    /**
+     * 构造方法
+     * @param chainManager 区块链管理器
+     */
+    public MiningCoordinator(ChainManager chainManager) {
+        this(chainManager, new BlockAssembler());
+    }
+
+    /**
+     * 构造方法
+     * @param chainManager 区块链管理器
+     * @param assembler 区块组装器
+     */
+    public MiningCoordinator(ChainManager chainManager, BlockAssembler assembler) {
+        this.chainManager = chainManager;
+        this.assembler = assembler;
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "mining-coordinator");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * 提交数据，立即返回挖矿任务
+     * 相同的数据在池中只保留一份，重复提交的任务会随同一个区块一起完成。
+     * @param data 区块中要保存的数据
+     * @return 挖矿任务，待打包数据池已满时返回 null
+     */
+    public MiningJob submit(String data) {
+        MiningJob job = new MiningJob(nextId.getAndIncrement(), data);
+        if (!pool.add(data, job)) {
+            return null;
+        }
+        jobs.put(job.getId(), job);
+        return job;
+    }
+
+    /**
+     * 查询任务
+     * @param id 任务编号
+     * @return 任务，不存在（或已被淘汰）时返回 null
+     */
+    public MiningJob getJob(long id) {
+        return jobs.getIfPresent(id);
+    }
+
+    public PendingDataPool getPool() {
+        return pool;
+    }
+
+    public long getCommittedPayloads() {
+        return committedPayloads.get();
+    }
+
+    private void loop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            List<PendingDataPool.Entry> batch;
+            try {
+                batch = assembler.nextBatch(pool);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            mine(batch);
+        }
+    }
+
+    private void mine(List<PendingDataPool.Entry> batch) {
+        for (PendingDataPool.Entry entry : batch) {
+            for (MiningJob job : entry.getJobs()) {
+                job.started();
+            }
+        }
+        Block block;
+        try {
+            block = chainManager.mineBlock(BlockAssembler.encode(batch));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            for (PendingDataPool.Entry entry : batch) {
+                for (MiningJob job : entry.getJobs()) {
+                    job.failed("挖矿被中断");
+                }
+            }
+            return;
+        } catch (Exception ex) {
+            System.out.println("挖矿失败，本批数据条数：" + batch.size());
+            ex.printStackTrace();
+            for (PendingDataPool.Entry entry : batch) {
+                for (MiningJob job : entry.getJobs()) {
+                    job.failed(String.valueOf(ex.getMessage()));
+                }
+            }
+            return;
+        }
+        committedPayloads.addAndGet(batch.size());
+        for (PendingDataPool.Entry entry : batch) {
+            for (MiningJob job : entry.getJobs()) {
+                job.completed(block);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // 对比每个区块一条数据与批量打包时，每秒能提交的数据条数
+        int total = 2000;
+        for (int maxPayloads : new int[]{1, 1000}) {
+            BlockChain bc = new BlockChain();
+            MiningCoordinator coordinator = new MiningCoordinator(new ChainManager(bc, null),
+                    new BlockAssembler(maxPayloads, 1024 * 1024L));
+            long start = System.nanoTime();
+            MiningJob last = null;
+            for (int i = 0; i < total; i++) {
+                last = coordinator.submit("payload-" + i);
+            }
+            last.await(Long.MAX_VALUE);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("每个区块最多 %d 条：区块数 %d，%.1f 条/秒",
+                    maxPayloads, bc.getBlockChain().size() - 1, total / seconds));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package blockchain.miner;
+
+import blockchain.pojo.Block;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 挖矿任务
+ * @author fanbin
+ * @date 2020/1/9
+ */
+public class MiningJob {
+
+    /**
+     * 任务状态
+     */
+    public enum Status {
+        /**
+         * 排队中
+         */
+        PENDING,
+        /**
+         * 挖矿中
+         */
+        MINING,
+        /**
+         * 已完成，区块已追加到区块链
+         */
+        DONE,
+        /**
+         * 失败
+         */
+        FAILED
+    }
+
+    /**
+     * 任务编号
+     */
+    private final long id;
+
+    /**
+     * 区块中要保存的数据
+     */
+    private final String data;
+
+    /**
+     * 提交时间
+     */
+    private final long submitTime;
+
+    private volatile Status status = Status.PENDING;
+
+    /**
+     * 挖出的区块
+     */
+    private volatile Block block;
+
+    /**
+     * 失败原因
+     */
+    private volatile String error;
+
+    /**
+     * 完成时间
+     */
+    private volatile long finishTime;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    MiningJob(long id, String data) {
+        this.id = id;
+        this.data = data;
+        this.submitTime = System.currentTimeMillis();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    public long getSubmitTime() {
+        return submitTime;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Block getBlock() {
+        return block;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getFinishTime() {
+        return finishTime;
+    }
+
+    void started() {
+        status = Status.MINING;
+    }
+
+    void completed(Block block) {
+        this.block = block;
+        finish(Status.DONE);
+    }
+
+    void failed(String error) {
+        this.error = error;
+        finish(Status.FAILED);
+    }
+
+    private void finish(Status status) {
+        this.finishTime = System.currentTimeMillis();
+        this.status = status;
+        done.countDown();
+    }
+
+    /**
+     * 等待任务结束
+     * @param timeoutMillis 最长等待时间（毫秒）
+     * @return 任务是否已结束
+     * @throws InterruptedException
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
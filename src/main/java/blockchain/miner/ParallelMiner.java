@@ -0,0 +1,220 @@
+package blockchain.miner;
+
+import blockchain.pojo.Block;
+import blockchain.pojo.BlockChain;
+import blockchain.util.BlockHasher;
+import blockchain.util.HashUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 多线程挖矿引擎
+ * 把 nonce 空间按线程数交错切分（第 i 个线程尝试 i, i+n, i+2n ...），
+ * 任何一个线程找到合法哈希后，其余线程在越过该 nonce 时立即停止。
+ * 最终结果总是最小的合法 nonce，因此与单线程挖矿的结果完全一致
+ * （不同线程数的节点算出的创世区块仍然相同）。
+ * 每个线程通过自己的 BlockHasher 直接在原像字节上计算，尝试过程中不创建字符串。
+ * 挖矿可以被取消：线程每隔 CHECK_INTERVAL 次尝试检查一次取消条件（例如最新区块已变化）。
+ * @author fanbin
+ * @date 2020/1/8
+ */
+public class ParallelMiner {
+
+    /**
+     * 配置挖矿线程数的系统属性名
+     */
+    public static final String THREADS_PROPERTY = "blockchain.miner.threads";
+
+    /**
+     * 每个线程每尝试多少次检查一次取消条件
+     */
+    private static final int CHECK_INTERVAL = 4096;
+
+    /**
+     * 永不取消
+     */
+    private static final BooleanSupplier NEVER = new BooleanSupplier() {
+        @Override
+        public boolean getAsBoolean() {
+            return false;
+        }
+    };
+
+    /**
+     * 挖矿线程数
+     */
+    private final int workers;
+
+    /**
+     * 挖矿线程池
+     */
+    private final ExecutorService pool;
+
+    /**
+     * 最近一次挖矿的算力（哈希次数/秒）
+     */
+    private volatile double lastHashRate;
+
+    /**
+     * 构造方法：线程数取系统属性 blockchain.miner.threads，默认为 CPU 核数
+     */
+    public ParallelMiner() {
+        this(Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * 构造方法
+     * @param workers 挖矿线程数
+     */
+    public ParallelMiner(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("挖矿线程数必须大于 0：" + workers);
+        }
+        this.workers = workers;
+        this.pool = Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder()
+                .setNameFormat("miner-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public double getLastHashRate() {
+        return lastHashRate;
+    }
+
+    /**
+     * 挖矿：计算区块的 nonce 和哈希值，并写回区块
+     * @param block 待挖矿的区块
+     */
+    public void mine(Block block) {
+        mine(block, NEVER);
+    }
+
+    /**
+     * 可取消的挖矿
+     * @param block 待挖矿的区块
+     * @param cancelled 取消条件，返回 true 时所有线程尽快停止
+     * @return 是否找到了合法的哈希值（被取消时返回 false，区块保持不变）
+     */
+    public boolean mine(Block block, BooleanSupplier cancelled) {
+        // 目前找到的最小合法 nonce
+        final AtomicLong best = new AtomicLong(Long.MAX_VALUE);
+        // 是否已被取消
+        final AtomicBoolean aborted = new AtomicBoolean();
+        // 所有线程尝试的哈希总次数
+        final AtomicLong attempts = new AtomicLong();
+        long start = System.nanoTime();
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(workers);
+        for (int i = 0; i < workers; i++) {
+            futures.add(pool.submit(new Worker(block, i, best, attempts, cancelled, aborted)));
+        }
+        // 等待所有线程结束
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("挖矿被中断", ex);
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException("挖矿线程异常", ex.getCause());
+            }
+        }
+
+        long elapsed = Math.max(System.nanoTime() - start, 1L);
+        lastHashRate = attempts.get() * 1e9 / elapsed;
+
+        if (aborted.get()) {
+            System.out.println(String.format("挖矿已取消，尝试次数：%d", attempts.get()));
+            return false;
+        }
+        block.setNonce(best.get());
+        block.setHash(HashUtil.toHex(BlockHasher.current().reset(block).hash(best.get())));
+        System.out.println("找到了合法的哈希值：" + block.getHash());
+        System.out.println(String.format("挖矿线程数：%d，尝试次数：%d，算力：%.0f H/s",
+                workers, attempts.get(), lastHashRate));
+        return true;
+    }
+
+    /**
+     * 挖矿线程：从 offset 开始，以线程数为步长尝试 nonce
+     */
+    private class Worker implements Runnable {
+
+        private final Block block;
+        private final long offset;
+        private final AtomicLong best;
+        private final AtomicLong attempts;
+        private final BooleanSupplier cancelled;
+        private final AtomicBoolean aborted;
+
+        Worker(Block block, long offset, AtomicLong best, AtomicLong attempts,
+               BooleanSupplier cancelled, AtomicBoolean aborted) {
+            this.block = block;
+            this.offset = offset;
+            this.best = best;
+            this.attempts = attempts;
+            this.cancelled = cancelled;
+            this.aborted = aborted;
+        }
+
+        @Override
+        public void run() {
+            long count = 0;
+            // 原像前缀只编码一次，之后每次只改写 nonce 部分
+            BlockHasher hasher = BlockHasher.current().reset(block);
+            // 一旦别的线程找到了更小的合法 nonce，后面的尝试就没有意义了
+            for (long nonce = offset; nonce < best.get(); nonce += workers) {
+                count++;
+                // 定期检查取消条件，任何一个线程发现取消后其余线程也随之停止
+                if (count % CHECK_INTERVAL == 0 && (aborted.get() || cancelled.getAsBoolean())) {
+                    aborted.set(true);
+                    break;
+                }
+                if (BlockChain.isValidHash(hasher.hash(nonce))) {
+                    updateBest(nonce);
+                    break;
+                }
+            }
+            attempts.addAndGet(count);
+        }
+
+        /**
+         * 只保留最小的合法 nonce
+         */
+        private void updateBest(long nonce) {
+            long current = best.get();
+            while (nonce < current && !best.compareAndSet(current, nonce)) {
+                current = best.get();
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        // 用不同的线程数挖同一个区块，观察算力是否随核数近似线性增长
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            ParallelMiner miner = new ParallelMiner(threads);
+            double total = 0;
+            int rounds = 5;
+            for (int i = 0; i < rounds; i++) {
+                Block block = new Block(1, System.currentTimeMillis(), "0", "bench-" + i);
+                miner.mine(block);
+                total += miner.getLastHashRate();
+            }
+            System.out.println(String.format("线程数 %d 的平均算力：%.0f H/s", threads, total / rounds));
+        }
+    }
+}
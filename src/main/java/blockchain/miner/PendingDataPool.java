@@ -0,0 +1,174 @@
+package blockchain.miner;
+
+import blockchain.util.HashUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 待打包数据池
+ * 提交的数据按 SHA-256 去重后在这里排队，按提交顺序被打包进区块。
+ * 池中的数据条数和字节数都有上限，满了以后拒绝新数据（与池中相同的数据仍然可以合并）。
+ * @author fanbin
+ * @date 2020/1/10
+ */
+public class PendingDataPool {
+
+    /**
+     * 配置池中最多数据条数的系统属性名
+     */
+    public static final String MAX_PAYLOADS_PROPERTY = "blockchain.pool.maxPayloads";
+
+    /**
+     * 配置池中最多数据字节数的系统属性名
+     */
+    public static final String MAX_BYTES_PROPERTY = "blockchain.pool.maxBytes";
+
+    /**
+     * 池中的一条数据，以及等待它被打包的挖矿任务
+     */
+    public static class Entry {
+
+        private final String hash;
+
+        private final String payload;
+
+        private final int size;
+
+        private final List<MiningJob> jobs = new ArrayList<MiningJob>(1);
+
+        Entry(String hash, String payload) {
+            this.hash = hash;
+            this.payload = payload;
+            this.size = payload.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public String getPayload() {
+            return payload;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public List<MiningJob> getJobs() {
+            return jobs;
+        }
+    }
+
+    /**
+     * 数据哈希 -> 数据，保持提交顺序
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * 池中数据的总字节数
+     */
+    private long bytes;
+
+    /**
+     * 池中最多数据条数
+     */
+    private final int maxPayloads;
+
+    /**
+     * 池中最多数据字节数
+     */
+    private final long maxBytes;
+
+    /**
+     * 因为池已满被拒绝的数据条数
+     */
+    private long rejected;
+
+    /**
+     * 构造方法：上限取系统属性，默认最多 100000 条、64MB 数据
+     */
+    public PendingDataPool() {
+        this(Integer.getInteger(MAX_PAYLOADS_PROPERTY, 100000),
+                Long.getLong(MAX_BYTES_PROPERTY, 64L * 1024 * 1024));
+    }
+
+    /**
+     * 构造方法
+     * @param maxPayloads 池中最多数据条数
+     * @param maxBytes 池中最多数据字节数
+     */
+    public PendingDataPool(int maxPayloads, long maxBytes) {
+        if (maxPayloads < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("数据池容量上限必须大于 0");
+        }
+        this.maxPayloads = maxPayloads;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 添加数据，相同的数据只保留一份
+     * @param payload 数据
+     * @param job 等待该数据被打包的任务
+     * @return 放入池中（或者与池中相同的数据合并）时返回 true；池已满时返回 false，任务没有被记录
+     */
+    public synchronized boolean add(String payload, MiningJob job) {
+        String hash = HashUtil.getSHA256(payload);
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            entry = new Entry(hash, payload);
+            if (entries.size() >= maxPayloads || bytes + entry.getSize() > maxBytes) {
+                rejected++;
+                return false;
+            }
+            entries.put(hash, entry);
+            bytes += entry.getSize();
+            notifyAll();
+        }
+        entry.getJobs().add(job);
+        return true;
+    }
+
+    /**
+     * 等待池中有数据后，按提交顺序取出一批
+     * 至少取出一条；之后在条数和字节数都不超过上限的前提下尽量多取。
+     * @param maxCount 最多条数
+     * @param maxBytes 最多字节数
+     * @return 取出的数据
+     * @throws InterruptedException
+     */
+    public synchronized List<Entry> takeBatch(int maxCount, long maxBytes) throws InterruptedException {
+        while (entries.isEmpty()) {
+            wait();
+        }
+        List<Entry> batch = new ArrayList<Entry>();
+        long batchBytes = 0;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext() && batch.size() < maxCount) {
+            Entry entry = it.next();
+            if (!batch.isEmpty() && batchBytes + entry.getSize() > maxBytes) {
+                break;
+            }
+            batch.add(entry);
+            batchBytes += entry.getSize();
+            bytes -= entry.getSize();
+            it.remove();
+        }
+        return batch;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized long rejected() {
+        return rejected;
+    }
+}
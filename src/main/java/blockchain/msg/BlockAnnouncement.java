@@ -0,0 +1,64 @@
+package blockchain.msg;
+
+import blockchain.pojo.Block;
+
+import java.util.List;
+
+/**
+ * 紧凑区块广播（CMPCT_BLOCK）：区块头加上区块数据的摘要，不携带数据本身
+ * 批量区块（data 是 BlockAssembler 编码的数据列表）逐条给出每条数据的 SHA-256；
+ * 其他区块把整个 data 当作一条数据。收到的节点从本地的数据缓存中按摘要找回数据、重新组装区块，
+ * 缺少的数据再用 REQ_PAYLOADS 向对方请求。
+ * @author fanbin
+ * @date 2020/1/25
+ */
+public class BlockAnnouncement {
+
+    /**
+     * 区块头，data 为空
+     */
+    private Block header;
+
+    /**
+     * data 是否为数据列表
+     */
+    private boolean batch;
+
+    /**
+     * 每条数据的 SHA-256，按在区块中的顺序
+     */
+    private List<String> digests;
+
+    public BlockAnnouncement() {
+    }
+
+    public BlockAnnouncement(Block header, boolean batch, List<String> digests) {
+        this.header = header;
+        this.batch = batch;
+        this.digests = digests;
+    }
+
+    public Block getHeader() {
+        return header;
+    }
+
+    public void setHeader(Block header) {
+        this.header = header;
+    }
+
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    public List<String> getDigests() {
+        return digests;
+    }
+
+    public void setDigests(List<String> digests) {
+        this.digests = digests;
+    }
+}
@@ -0,0 +1,236 @@
+package blockchain.msg;
+
+import blockchain.pojo.Block;
+import blockchain.pojo.CompactBlock;
+import com.alibaba.fastjson.JSON;
+import org.java_websocket.framing.Framedata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 分段编码的区块列表消息
+ * 整个区块列表不再先拼成一个字符串或者一个缓冲区，而是每次只编码一段区块，作为同一条 WebSocket 消息的
+ * 一个分片（fragment）发出，或者写入 HTTP 分块响应。区块列表是主链快照，冷区块按需从磁盘读取，
+ * 所以无论区块链多长，发送时占用的内存只与每段的区块数有关。
+ * 分片拼起来与一次性编码的 RES_BLOCKS 消息完全相同。Java-WebSocket 1.3.4 不会重组分片，接收方需要在
+ * onFragment 中自己重组（FragmentAssembler），所以只对协议版本 4 及以上的节点以分片发送。
+ * @author fanbin
+ * @date 2020/1/26
+ */
+public class BlockStream {
+
+    /**
+     * 配置每段区块数的系统属性名
+     */
+    public static final String CHUNK_BLOCKS_PROPERTY = "blockchain.stream.chunkBlocks";
+
+    /**
+     * 每段的区块数
+     */
+    public static final int CHUNK_BLOCKS = Integer.getInteger(CHUNK_BLOCKS_PROPERTY, 100);
+
+    private final int type;
+
+    private final List<Block> blocks;
+
+    private final boolean binary;
+
+    /**
+     * 二进制帧的内容长度，JSON 消息不使用
+     */
+    private final int length;
+
+    /**
+     * 下一段的起始位置，-1 表示还没有发出第一段
+     */
+    private int next = -1;
+
+    private boolean finished;
+
+    private BlockStream(int type, List<Block> blocks, boolean binary, int length) {
+        this.type = type;
+        this.blocks = blocks;
+        this.binary = binary;
+        this.length = length;
+    }
+
+    /**
+     * 分段编码的 JSON 消息，与 new Message(type, JSON.toJSONString(blocks)) 等价
+     * @param type 消息类型
+     * @param blocks 区块，编码期间不能修改（主链快照）
+     * @return
+     */
+    public static BlockStream json(int type, List<Block> blocks) {
+        return new BlockStream(type, blocks, false, 0);
+    }
+
+    /**
+     * 分段编码的二进制帧，与 Frame.encodeBlocks(type, blocks) 等价
+     * 帧头需要内容长度，创建时先遍历一遍区块计算长度（不保留编码结果）。
+     * @param type 消息类型
+     * @param blocks 区块，编码期间不能修改（主链快照）
+     * @return
+     */
+    public static BlockStream binary(int type, List<Block> blocks) {
+        long length = 4;
+        for (Block block : blocks) {
+            length += CompactBlock.encodedSize(block);
+        }
+        if (length > Integer.MAX_VALUE - Frame.HEADER_SIZE) {
+            throw new IllegalArgumentException("区块列表超过二进制帧的长度上限：" + length);
+        }
+        return new BlockStream(type, blocks, true, (int) length);
+    }
+
+    /**
+     * 分片的类型
+     * @return
+     */
+    public Framedata.Opcode getOpcode() {
+        return binary ? Framedata.Opcode.BINARY : Framedata.Opcode.TEXT;
+    }
+
+    /**
+     * 是否还有没编码的分片
+     * @return
+     */
+    public boolean hasNext() {
+        return !finished;
+    }
+
+    /**
+     * 编码下一个分片：第一个分片是消息头，之后每个分片一段区块，最后一个分片是消息尾
+     * @return 分片的字节
+     */
+    public ByteBuffer next() {
+        if (finished) {
+            throw new IllegalStateException("已经编码完所有分片");
+        }
+        if (next < 0) {
+            next = 0;
+            return binary ? binaryHead() : utf8("{\"type\":" + type + ",\"data\":\"[");
+        }
+        int from = next;
+        int to = Math.min(blocks.size(), from + CHUNK_BLOCKS);
+        next = to;
+        if (binary) {
+            ByteBuffer buffer = chunkBuffer(from, to);
+            finished = to >= blocks.size();
+            return buffer;
+        }
+        if (from >= blocks.size()) {
+            finished = true;
+            return utf8("]\"}");
+        }
+        String chunk = jsonChunk(from, to);
+        // 区块数组在 Message 中是 data 字段的字符串值，需要再转义一次（去掉转义结果两端的引号）
+        String escaped = JSON.toJSONString(chunk);
+        return utf8(escaped.substring(1, escaped.length() - 1));
+    }
+
+    /**
+     * 把区块列表以 JSON 数组写入 HTTP 响应，每写完一段就刷新，响应以分块传输编码发出
+     * @param blocks 区块
+     * @param out 响应
+     * @throws IOException
+     */
+    public static void writeJson(List<Block> blocks, Writer out) throws IOException {
+        BlockStream stream = json(0, blocks);
+        out.write('[');
+        for (int from = 0; from < blocks.size(); from += CHUNK_BLOCKS) {
+            out.write(stream.jsonChunk(from, Math.min(blocks.size(), from + CHUNK_BLOCKS)));
+            out.flush();
+        }
+        out.write(']');
+    }
+
+    /**
+     * 一段区块的 JSON 文本，不包括数组的方括号；不是第一段时以逗号开头
+     */
+    private String jsonChunk(int from, int to) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(JSON.toJSONString(blocks.get(i)));
+        }
+        return sb.toString();
+    }
+
+    private ByteBuffer binaryHead() {
+        ByteBuffer buffer = ByteBuffer.allocate(Frame.HEADER_SIZE + 4);
+        Frame.putHeader(buffer, type, length);
+        buffer.putInt(blocks.size());
+        buffer.flip();
+        if (blocks.isEmpty()) {
+            finished = true;
+        }
+        return buffer;
+    }
+
+    private ByteBuffer chunkBuffer(int from, int to) {
+        int size = 0;
+        for (int i = from; i < to; i++) {
+            size += CompactBlock.encodedSize(blocks.get(i));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = from; i < to; i++) {
+            CompactBlock.encode(blocks.get(i), buffer);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer utf8(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void main(String[] args) {
+        // 检查分段编码与一次性编码的结果相同，并对比最大的分片与整条消息的字节数
+        int count = 10000;
+        List<Block> blocks = new ArrayList<Block>(count);
+        String previousHash = "000c81784691c7bb8bacab6affb23312fd707bf0463e9afc217ce1a32ab3a4aa";
+        for (int i = 1; i <= count; i++) {
+            Block block = new Block(i, 1578000000000L + i, previousHash, "payload-\"" + i + "\"-数据");
+            block.setNonce(i * 31L);
+            block.setHash(blockchain.util.HashUtil.getSHA256(block.originalString()));
+            blocks.add(block);
+            previousHash = block.getHash();
+        }
+        byte[] json = JSON.toJSONString(new Message(Constant.RES_BLOCKS, JSON.toJSONString(blocks)))
+                .getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = Frame.encodeBlocks(Constant.RES_BLOCKS, blocks);
+        for (BlockStream stream : new BlockStream[]{json(Constant.RES_BLOCKS, blocks), binary(Constant.RES_BLOCKS, blocks)}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int fragments = 0;
+            int largest = 0;
+            while (stream.hasNext()) {
+                ByteBuffer fragment = stream.next();
+                fragments++;
+                largest = Math.max(largest, fragment.remaining());
+                out.write(fragment.array(), fragment.arrayOffset() + fragment.position(), fragment.remaining());
+            }
+            byte[] streamed = out.toByteArray();
+            boolean same;
+            if (stream.binary) {
+                byte[] expected = new byte[frame.remaining()];
+                frame.duplicate().get(expected);
+                same = Arrays.equals(expected, streamed);
+            } else {
+                same = JSON.parseObject(new String(streamed, StandardCharsets.UTF_8), Message.class).getData()
+                        .equals(JSON.parseObject(new String(json, StandardCharsets.UTF_8), Message.class).getData());
+            }
+            System.out.println(String.format("%s：%d 个区块，整条消息 %d 字节，%d 个分片，最大分片 %d 字节，结果%s",
+                    stream.binary ? "二进制帧" : "JSON 消息", count, streamed.length, fragments, largest,
+                    same ? "一致" : "不一致"));
+        }
+    }
+}
@@ -26,5 +26,45 @@ public class Constant {
      */
     public static final int RES_BLOCKS = 2;
 
+    /**
+     * 握手：交换支持的二进制协议版本（JSON 消息，data 为版本号），不认识的节点会忽略
+     */
+    public static final int HELLO = 3;
+
+    /**
+     * 请求区块头：data 为 SyncRequest（locator、limit）
+     */
+    public static final int REQ_HEADERS = 4;
+
+    /**
+     * 响应区块头：区块数组，data 字段为空
+     */
+    public static final int RES_HEADERS = 5;
+
+    /**
+     * 请求一段区块：data 为 SyncRequest（from、to），对方用 RES_BLOCKS 响应
+     */
+    public static final int REQ_BLOCK_RANGE = 6;
+
+    /**
+     * 节点信息：data 为节点编号（JSON 消息），用来识别重复的连接和连到自己的连接，不认识的节点会忽略
+     */
+    public static final int NODE_INFO = 7;
+
+    /**
+     * 紧凑区块广播：data 为 BlockAnnouncement（JSON 消息），协议版本 3 起使用
+     */
+    public static final int CMPCT_BLOCK = 8;
+
+    /**
+     * 请求区块中的数据：data 为 PayloadTransfer（hash、indexes，JSON 消息）
+     */
+    public static final int REQ_PAYLOADS = 9;
+
+    /**
+     * 响应区块中的数据：data 为 PayloadTransfer（hash、indexes、payloads，JSON 消息）
+     */
+    public static final int RES_PAYLOADS = 10;
+
 
 }
@@ -0,0 +1,219 @@
+package blockchain.msg;
+
+import blockchain.pojo.Block;
+import blockchain.pojo.CompactBlock;
+import com.alibaba.fastjson.JSON;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 二进制消息帧，通过 WebSocket 二进制帧传输
+ * 格式（大端序）：
+ * <pre>
+ * [1 字节协议版本][1 字节消息类型][4 字节内容长度][内容]
+ * </pre>
+ * 消息类型与 JSON 消息相同（Constant）。RES_BLOCKS 的内容是 [4 字节区块数] 加上依次排列的
+ * 区块紧凑表示（CompactBlock），解码时直接从收到的缓冲区读取，不再先转成字符串、解析两遍 JSON。
+ * RES_HEADERS 的内容与 RES_BLOCKS 相同（区块的 data 为空）；REQ_HEADERS 的内容是
+ * [4 字节 limit][4 字节哈希数][每个哈希 32 字节]，REQ_BLOCK_RANGE 的内容是 [4 字节 from][4 字节 to]。
+ * 连接建立后双方通过 JSON 消息 HELLO 交换支持的协议版本，对方不支持时继续使用 JSON 消息。
+ * @author fanbin
+ * @date 2020/1/18
+ */
+public final class Frame {
+
+    /**
+     * 帧格式版本
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * 帧头长度
+     */
+    public static final int HEADER_SIZE = 1 + 1 + 4;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private Frame() {
+
+    }
+
+    /**
+     * 编码没有内容的消息（请求类消息）
+     * @param type 消息类型
+     * @return 帧，可以直接发送
+     */
+    public static ByteBuffer encode(int type) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        putHeader(buffer, type, 0);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 编码携带区块的消息
+     * @param type 消息类型
+     * @param blocks 区块
+     * @return 帧，可以直接发送
+     */
+    public static ByteBuffer encodeBlocks(int type, List<Block> blocks) {
+        int length = 4;
+        for (Block block : blocks) {
+            length += CompactBlock.encodedSize(block);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        putHeader(buffer, type, length);
+        buffer.putInt(blocks.size());
+        for (Block block : blocks) {
+            CompactBlock.encode(block, buffer);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 读取帧头并检查，读取后缓冲区位置移到内容的起始位置
+     * @param buffer 收到的帧
+     * @return 消息类型
+     */
+    public static int readHeader(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("消息帧长度不足：" + buffer.remaining());
+        }
+        int version = buffer.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("不支持的协议版本：" + version);
+        }
+        int type = buffer.get() & 0xFF;
+        int length = buffer.getInt();
+        if (length != buffer.remaining()) {
+            throw new IllegalArgumentException("消息帧内容长度错误：" + length + "，实际 " + buffer.remaining());
+        }
+        return type;
+    }
+
+    /**
+     * 从内容的起始位置解码区块
+     * @param buffer 已读取过帧头的缓冲区
+     * @return 区块
+     */
+    public static List<Block> decodeBlocks(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / CompactBlock.HEADER_SIZE) {
+            throw new IllegalArgumentException("区块数错误：" + count);
+        }
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        List<Block> blocks = new ArrayList<Block>(count);
+        for (int i = 0; i < count; i++) {
+            blocks.add(CompactBlock.decode(buffer));
+        }
+        if (buffer.hasRemaining()) {
+            throw new IllegalArgumentException("消息帧末尾有多余的数据：" + buffer.remaining());
+        }
+        return blocks;
+    }
+
+    /**
+     * 编码同步请求（REQ_HEADERS 或 REQ_BLOCK_RANGE）
+     * @param type 消息类型
+     * @param request 同步请求
+     * @return 帧，可以直接发送
+     */
+    public static ByteBuffer encodeSyncRequest(int type, SyncRequest request) {
+        int length = type == Constant.REQ_HEADERS ? 4 + 4 + 32 * request.getLocator().size() : 4 + 4;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        putHeader(buffer, type, length);
+        if (type == Constant.REQ_HEADERS) {
+            buffer.putInt(request.getLimit());
+            buffer.putInt(request.getLocator().size());
+            for (String hash : request.getLocator()) {
+                for (int i = 0; i < 32; i++) {
+                    buffer.put((byte) ((Character.digit(hash.charAt(i * 2), 16) << 4)
+                            | Character.digit(hash.charAt(i * 2 + 1), 16)));
+                }
+            }
+        } else {
+            buffer.putInt(request.getFrom());
+            buffer.putInt(request.getTo());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 从内容的起始位置解码同步请求
+     * @param type 消息类型
+     * @param buffer 已读取过帧头的缓冲区
+     * @return 同步请求
+     */
+    public static SyncRequest decodeSyncRequest(int type, ByteBuffer buffer) {
+        if (type != Constant.REQ_HEADERS) {
+            return SyncRequest.range(buffer.getInt(), buffer.getInt());
+        }
+        int limit = buffer.getInt();
+        int count = buffer.getInt();
+        if (count < 0 || count != buffer.remaining() / 32) {
+            throw new IllegalArgumentException("区块定位哈希数错误：" + count);
+        }
+        List<String> locator = new ArrayList<String>(count);
+        char[] chars = new char[64];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < 32; j++) {
+                int b = buffer.get();
+                chars[j * 2] = HEX_DIGITS[(b >> 4) & 0x0F];
+                chars[j * 2 + 1] = HEX_DIGITS[b & 0x0F];
+            }
+            locator.add(new String(chars));
+        }
+        return SyncRequest.headers(locator, limit);
+    }
+
+    static void putHeader(ByteBuffer buffer, int type, int length) {
+        buffer.put((byte) VERSION);
+        buffer.put((byte) type);
+        buffer.putInt(length);
+    }
+
+    public static void main(String[] args) {
+        // 对比 JSON 消息（区块数组的 JSON 字符串再嵌入 Message）与二进制帧的字节数和解码速度
+        int count = 10000;
+        List<Block> blocks = new ArrayList<Block>(count);
+        String previousHash = "000c81784691c7bb8bacab6affb23312fd707bf0463e9afc217ce1a32ab3a4aa";
+        for (int i = 1; i <= count; i++) {
+            Block block = new Block(i, 1578000000000L + i, previousHash, "payload-" + i);
+            block.setNonce(i * 31L);
+            block.setHash(blockchain.util.HashUtil.getSHA256(block.originalString()));
+            blocks.add(block);
+            previousHash = block.getHash();
+        }
+
+        String json = JSON.toJSONString(new Message(Constant.RES_BLOCKS, JSON.toJSONString(blocks)));
+        ByteBuffer frame = encodeBlocks(Constant.RES_BLOCKS, blocks);
+        int jsonBytes = json.getBytes(java.nio.charset.StandardCharsets.UTF_8).length;
+        System.out.println(String.format("%d 个区块：JSON 消息 %d 字节，二进制帧 %d 字节（%.1f%%）",
+                count, jsonBytes, frame.remaining(), frame.remaining() * 100.0 / jsonBytes));
+
+        int rounds = 50;
+        long decoded = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            Message message = JSON.parseObject(json, Message.class);
+            decoded += JSON.parseArray(message.getData(), Block.class).size();
+        }
+        long jsonNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            ByteBuffer buffer = frame.duplicate();
+            readHeader(buffer);
+            decoded += decodeBlocks(buffer).size();
+        }
+        long binaryNanos = System.nanoTime() - start;
+        System.out.println(String.format("解码：JSON %.0f 区块/秒，二进制帧 %.0f 区块/秒（共解码 %d 个区块）",
+                count * rounds * 1e9 / jsonNanos, count * rounds * 1e9 / binaryNanos, decoded));
+    }
+}
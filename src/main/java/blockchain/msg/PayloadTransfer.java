@@ -0,0 +1,81 @@
+package blockchain.msg;
+
+import java.util.List;
+
+/**
+ * 区块数据的请求和响应
+ * REQ_PAYLOADS 使用 hash 和 indexes：请求区块中这些位置的数据；
+ * RES_PAYLOADS 另外带上 payloads，与 indexes 一一对应，对方没有这个区块时 payloads 为空。
+ * @author fanbin
+ * @date 2020/1/25
+ */
+public class PayloadTransfer {
+
+    /**
+     * 区块哈希
+     */
+    private String hash;
+
+    /**
+     * 数据在区块中的位置
+     */
+    private List<Integer> indexes;
+
+    /**
+     * 数据
+     */
+    private List<String> payloads;
+
+    public PayloadTransfer() {
+    }
+
+    /**
+     * 请求区块中的数据
+     * @param hash 区块哈希
+     * @param indexes 数据在区块中的位置
+     * @return
+     */
+    public static PayloadTransfer request(String hash, List<Integer> indexes) {
+        PayloadTransfer transfer = new PayloadTransfer();
+        transfer.setHash(hash);
+        transfer.setIndexes(indexes);
+        return transfer;
+    }
+
+    /**
+     * 响应请求的数据
+     * @param hash 区块哈希
+     * @param indexes 数据在区块中的位置
+     * @param payloads 数据，没有这个区块时为空
+     * @return
+     */
+    public static PayloadTransfer response(String hash, List<Integer> indexes, List<String> payloads) {
+        PayloadTransfer transfer = request(hash, indexes);
+        transfer.setPayloads(payloads);
+        return transfer;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public List<Integer> getIndexes() {
+        return indexes;
+    }
+
+    public void setIndexes(List<Integer> indexes) {
+        this.indexes = indexes;
+    }
+
+    public List<String> getPayloads() {
+        return payloads;
+    }
+
+    public void setPayloads(List<String> payloads) {
+        this.payloads = payloads;
+    }
+}
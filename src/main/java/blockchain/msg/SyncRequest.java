@@ -0,0 +1,94 @@
+package blockchain.msg;
+
+import java.util.List;
+
+/**
+ * 区块同步请求
+ * REQ_HEADERS 使用 locator 和 limit：对方从 locator 中第一个在其主链上的区块之后开始，最多返回 limit 个区块头；
+ * REQ_BLOCK_RANGE 使用 from 和 to：请求高度在 [from, to] 之间的区块。
+ * @author fanbin
+ * @date 2020/1/19
+ */
+public class SyncRequest {
+
+    /**
+     * 区块定位：本地主链上的区块哈希，从最新区块开始，越往前间隔越大，最后一个是创世区块
+     */
+    private List<String> locator;
+
+    /**
+     * 最多返回的区块头数
+     */
+    private int limit;
+
+    /**
+     * 起始高度（包含）
+     */
+    private int from;
+
+    /**
+     * 结束高度（包含）
+     */
+    private int to;
+
+    public SyncRequest() {
+    }
+
+    /**
+     * 请求区块头
+     * @param locator 区块定位
+     * @param limit 最多返回的区块头数
+     * @return
+     */
+    public static SyncRequest headers(List<String> locator, int limit) {
+        SyncRequest request = new SyncRequest();
+        request.setLocator(locator);
+        request.setLimit(limit);
+        return request;
+    }
+
+    /**
+     * 请求一段区块
+     * @param from 起始高度（包含）
+     * @param to 结束高度（包含）
+     * @return
+     */
+    public static SyncRequest range(int from, int to) {
+        SyncRequest request = new SyncRequest();
+        request.setFrom(from);
+        request.setTo(to);
+        return request;
+    }
+
+    public List<String> getLocator() {
+        return locator;
+    }
+
+    public void setLocator(List<String> locator) {
+        this.locator = locator;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public void setFrom(int from) {
+        this.from = from;
+    }
+
+    public int getTo() {
+        return to;
+    }
+
+    public void setTo(int to) {
+        this.to = to;
+    }
+}
@@ -0,0 +1,554 @@
+package blockchain.p2p;
+
+import blockchain.pojo.Block;
+import blockchain.pojo.BlockChain.AcceptResult;
+import blockchain.pojo.ChainManager;
+import org.java_websocket.WebSocket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * 区块下载调度器
+ * 收到一批区块头后，把本地缺少的那一段按高度切成若干块，同时向多个支持按区间同步的节点请求，
+ * 每个节点同时进行的请求数有上限。请求超时、对方没有这段区块或者返回的区块与区块头不符时，
+ * 这一块改由其他节点下载。下载完成的块按高度顺序依次交给区块链管理器，一次只提交一块，
+ * 前一块处理完后再提交下一块，保证区块按顺序追加。
+ * 同一时间只进行一次下载，所有状态都在调度器的锁内修改。
+ * @author fanbin
+ * @date 2020/1/20
+ */
+public class BlockDownloader {
+
+    /**
+     * 每块的区块数
+     */
+    public static final int CHUNK_SIZE = 100;
+
+    /**
+     * 每个节点最多同时进行的请求数
+     */
+    public static final int MAX_IN_FLIGHT = 4;
+
+    /**
+     * 请求超时时间
+     */
+    public static final long TIMEOUT_MS = 10000;
+
+    /**
+     * 连续超时达到这个次数的节点，同时只分配一个请求
+     */
+    private static final int SLOW_PEER_TIMEOUTS = 2;
+
+    /**
+     * 检查超时的间隔
+     */
+    private static final long TICK_MS = 1000;
+
+    /**
+     * 调度器与 P2P 节点之间的接口
+     */
+    public interface Transport {
+
+        /**
+         * 当前可以请求区块区间的连接
+         * @return 连接
+         */
+        List<WebSocket> peers();
+
+        /**
+         * 向对方请求一段区块，对方用 RES_BLOCKS 响应
+         * @param socket 远程连接
+         * @param from 起始高度（包含）
+         * @param to 结束高度（包含）
+         */
+        void requestRange(WebSocket socket, int from, int to);
+
+        /**
+         * 这批区块头对应的区块都已处理完
+         * @param source 区块头的来源连接
+         * @param more 对方可能还有更多区块头
+         */
+        void downloadFinished(WebSocket source, boolean more);
+    }
+
+    /**
+     * 一块区块
+     */
+    private static final class Chunk {
+
+        private final int from;
+
+        /**
+         * 这一段区块头的哈希，用来核对收到的区块
+         */
+        private final List<String> hashes;
+
+        /**
+         * 向哪些节点请求过这一块，迟到的响应也会被认出来
+         */
+        private final Set<WebSocket> requested = new HashSet<WebSocket>();
+
+        /**
+         * 当前负责下载的节点，没有时为 null
+         */
+        private WebSocket peer;
+
+        private long requestedAt;
+
+        /**
+         * 下载到的区块，提交给管理器后清空
+         */
+        private List<Block> blocks;
+
+        /**
+         * 下载到这一块的节点，提交给管理器时作为来源，处理结果计入它的分数
+         */
+        private WebSocket deliveredBy;
+
+        private boolean done;
+
+        Chunk(int from, List<String> hashes) {
+            this.from = from;
+            this.hashes = hashes;
+        }
+
+        int to() {
+            return from + hashes.size() - 1;
+        }
+    }
+
+    /**
+     * 节点在本次下载中的状态
+     */
+    private static final class PeerState {
+
+        private int inFlight;
+
+        private int timeouts;
+
+        /**
+         * 对方没有这批区块（返回空列表或者区块与区块头不符），本次下载不再向它请求
+         */
+        private boolean lacking;
+
+        int limit() {
+            return timeouts >= SLOW_PEER_TIMEOUTS ? 1 : MAX_IN_FLIGHT;
+        }
+    }
+
+    private final ChainManager chainManager;
+
+    private final Transport transport;
+
+    private final ScheduledExecutorService timer;
+
+    /**
+     * 区块头的来源连接，没有进行中的下载时为 null
+     */
+    private WebSocket source;
+
+    private boolean more;
+
+    private List<Chunk> chunks = new ArrayList<Chunk>();
+
+    private final Map<WebSocket, PeerState> peers = new HashMap<WebSocket, PeerState>();
+
+    /**
+     * 下一块要提交给管理器的块
+     */
+    private int nextApply;
+
+    /**
+     * 已经有一块提交给管理器、还没处理完
+     */
+    private boolean applying;
+
+    private final AtomicLong requestedChunks = new AtomicLong();
+
+    private final AtomicLong reassignedChunks = new AtomicLong();
+
+    private final AtomicLong timedOutRequests = new AtomicLong();
+
+    private final AtomicLong downloadedBlocks = new AtomicLong();
+
+    /**
+     * 构造方法
+     * @param chainManager 区块链管理器
+     * @param transport 与 P2P 节点之间的接口
+     */
+    public BlockDownloader(ChainManager chainManager, Transport transport) {
+        this.chainManager = chainManager;
+        this.transport = transport;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "block-downloader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (Exception ex) {
+                    System.out.println("区块下载调度异常");
+                    ex.printStackTrace();
+                }
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 开始下载一批区块头对应的区块
+     * @param source 区块头的来源连接
+     * @param headers 本地缺少的区块头，按高度排列且相连
+     * @param more 对方可能还有更多区块头
+     * @return 已经有下载在进行时返回 false
+     */
+    public synchronized boolean start(WebSocket source, List<Block> headers, boolean more) {
+        if (this.source != null) {
+            return false;
+        }
+        this.source = source;
+        this.more = more;
+        this.chunks = new ArrayList<Chunk>((headers.size() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int i = 0; i < headers.size(); i += CHUNK_SIZE) {
+            List<Block> part = headers.subList(i, Math.min(headers.size(), i + CHUNK_SIZE));
+            List<String> hashes = new ArrayList<String>(part.size());
+            for (Block header : part) {
+                hashes.add(header.getHash());
+            }
+            chunks.add(new Chunk(part.get(0).getIndex(), hashes));
+        }
+        this.peers.clear();
+        this.nextApply = 0;
+        this.applying = false;
+        System.out.println(String.format("开始下载高度 %d 到 %d 的区块，共 %d 块",
+                chunks.get(0).from, chunks.get(chunks.size() - 1).to(), chunks.size()));
+        schedule();
+        return true;
+    }
+
+    /**
+     * 是否正在下载
+     * @return
+     */
+    public synchronized boolean isDownloading() {
+        return source != null;
+    }
+
+    /**
+     * 处理收到的区块，是本次下载请求的响应时由调度器处理
+     * @param socket 来源连接
+     * @param blocks 收到的区块
+     * @return 是下载请求的响应时返回 true，否则返回 false，由调用方按普通消息处理
+     */
+    public synchronized boolean onBlocks(WebSocket socket, List<Block> blocks) {
+        if (source == null) {
+            return false;
+        }
+        if (blocks.isEmpty()) {
+            PeerState state = peers.get(socket);
+            if (state == null || state.inFlight == 0) {
+                return false;
+            }
+            markLacking(socket, "对方没有这段区块");
+            schedule();
+            return true;
+        }
+        Chunk chunk = findChunk(blocks.get(0).getIndex());
+        if (chunk == null || !chunk.requested.contains(socket)) {
+            return false;
+        }
+        if (chunk.done) {
+            // 超时后改由其他节点下载的块，另一个节点也返回了
+            return true;
+        }
+        if (!matches(chunk, blocks)) {
+            release(chunk, socket);
+            markLacking(socket, "收到的区块与区块头不符");
+            schedule();
+            return true;
+        }
+        // 可能是超时的节点先返回了，同时释放现在负责这一块的节点
+        if (chunk.peer != null) {
+            release(chunk, chunk.peer);
+        }
+        PeerState state = peers.get(socket);
+        if (state != null) {
+            state.timeouts = 0;
+        }
+        chunk.done = true;
+        chunk.blocks = blocks;
+        chunk.deliveredBy = socket;
+        downloadedBlocks.addAndGet(blocks.size());
+        applyNext();
+        schedule();
+        return true;
+    }
+
+    /**
+     * 连接断开：它负责的块改由其他节点下载
+     * @param socket 断开的连接
+     */
+    public synchronized void peerClosed(WebSocket socket) {
+        if (source == null) {
+            return;
+        }
+        for (Chunk chunk : chunks) {
+            if (chunk.peer == socket) {
+                chunk.peer = null;
+                reassignedChunks.incrementAndGet();
+            }
+        }
+        peers.remove(socket);
+        schedule();
+    }
+
+    public long getRequestedChunks() {
+        return requestedChunks.get();
+    }
+
+    public long getReassignedChunks() {
+        return reassignedChunks.get();
+    }
+
+    public long getTimedOutRequests() {
+        return timedOutRequests.get();
+    }
+
+    public long getDownloadedBlocks() {
+        return downloadedBlocks.get();
+    }
+
+    /**
+     * 定时检查：超时的请求改由其他节点下载，重试提交被管理器丢弃的块，没有节点能提供区块时结束下载
+     */
+    private synchronized void tick() {
+        if (source == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Chunk chunk : chunks) {
+            if (chunk.peer == null || chunk.done) {
+                continue;
+            }
+            if (!chunk.peer.isOpen() || now - chunk.requestedAt > TIMEOUT_MS) {
+                PeerState state = peers.get(chunk.peer);
+                if (state != null) {
+                    state.inFlight--;
+                    state.timeouts++;
+                }
+                System.out.println(String.format("高度 %d 到 %d 的区块请求超时，改由其他节点下载", chunk.from, chunk.to()));
+                chunk.peer = null;
+                timedOutRequests.incrementAndGet();
+                reassignedChunks.incrementAndGet();
+            }
+        }
+        applyNext();
+        schedule();
+        if (source != null && hasWaitingChunk() && selectPeer(null) == null) {
+            abort("没有节点能提供剩余的区块");
+        }
+    }
+
+    /**
+     * 把还没有节点负责的块分配给空闲的节点
+     */
+    private void schedule() {
+        if (source == null) {
+            return;
+        }
+        for (Chunk chunk : chunks) {
+            if (chunk.done || chunk.peer != null) {
+                continue;
+            }
+            WebSocket peer = selectPeer(chunk);
+            if (peer == null) {
+                break;
+            }
+            chunk.peer = peer;
+            chunk.requestedAt = System.currentTimeMillis();
+            chunk.requested.add(peer);
+            peers.get(peer).inFlight++;
+            requestedChunks.incrementAndGet();
+            transport.requestRange(peer, chunk.from, chunk.to());
+        }
+    }
+
+    /**
+     * 选择进行中请求最少的节点，优先选择没有超时过、没有请求过这一块的节点
+     * @param chunk 要下载的块，为 null 时只判断是否还有可用的节点
+     * @return 没有可用的节点时返回 null
+     */
+    private WebSocket selectPeer(Chunk chunk) {
+        WebSocket best = null;
+        PeerState bestState = null;
+        boolean bestRequested = false;
+        for (WebSocket peer : transport.peers()) {
+            if (!peer.isOpen()) {
+                continue;
+            }
+            PeerState state = peers.get(peer);
+            if (state == null) {
+                state = new PeerState();
+                peers.put(peer, state);
+            }
+            if (state.lacking || (chunk != null && state.inFlight >= state.limit())) {
+                continue;
+            }
+            boolean requested = chunk != null && chunk.requested.contains(peer);
+            if (best == null || (bestRequested && !requested)
+                    || (bestRequested == requested && (state.timeouts < bestState.timeouts
+                    || (state.timeouts == bestState.timeouts && state.inFlight < bestState.inFlight)))) {
+                best = peer;
+                bestState = state;
+                bestRequested = requested;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 下一块已经下载完成、并且没有块在处理中时，提交给区块链管理器
+     */
+    private void applyNext() {
+        if (source == null || applying || nextApply >= chunks.size() || !chunks.get(nextApply).done) {
+            return;
+        }
+        final Chunk chunk = chunks.get(nextApply);
+        CompletableFuture<AcceptResult> result = chainManager.offerRange(chunk.blocks, chunk.deliveredBy);
+        if (result == null) {
+            // 管理器队列已满，下次检查时重试
+            return;
+        }
+        applying = true;
+        final WebSocket current = source;
+        result.whenComplete(new BiConsumer<AcceptResult, Throwable>() {
+            @Override
+            public void accept(AcceptResult acceptResult, Throwable ex) {
+                applied(current, chunk, acceptResult, ex);
+            }
+        });
+    }
+
+    private synchronized void applied(WebSocket current, Chunk chunk, AcceptResult result, Throwable ex) {
+        if (source != current || nextApply >= chunks.size() || chunks.get(nextApply) != chunk) {
+            return;
+        }
+        applying = false;
+        if (ex != null || result == AcceptResult.INVALID || result == AcceptResult.ORPHAN) {
+            abort(String.format("高度 %d 到 %d 的区块无法使用（%s）", chunk.from, chunk.to(),
+                    ex != null ? ex.getMessage() : result));
+            return;
+        }
+        System.out.println(String.format("同步到高度 %d 到 %d 的区块，结果：%s", chunk.from, chunk.to(), result));
+        chunk.blocks = null;
+        nextApply++;
+        if (nextApply < chunks.size()) {
+            applyNext();
+            return;
+        }
+        WebSocket finished = source;
+        boolean finishedMore = more;
+        reset();
+        transport.downloadFinished(finished, finishedMore);
+    }
+
+    private void abort(String reason) {
+        System.out.println("区块下载结束：" + reason);
+        reset();
+    }
+
+    private void reset() {
+        source = null;
+        chunks = new ArrayList<Chunk>();
+        peers.clear();
+        nextApply = 0;
+        applying = false;
+    }
+
+    private Chunk findChunk(int from) {
+        if (chunks.isEmpty()) {
+            return null;
+        }
+        int i = (from - chunks.get(0).from) / CHUNK_SIZE;
+        if (i < 0 || i >= chunks.size() || chunks.get(i).from != from) {
+            return null;
+        }
+        return chunks.get(i);
+    }
+
+    private static boolean matches(Chunk chunk, List<Block> blocks) {
+        if (blocks.size() != chunk.hashes.size()) {
+            return false;
+        }
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            if (block.getIndex() != chunk.from + i || !chunk.hashes.get(i).equals(block.getHash())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 这个节点不再负责这一块，释放它占用的请求数
+     */
+    private void release(Chunk chunk, WebSocket socket) {
+        if (chunk.peer != socket) {
+            return;
+        }
+        chunk.peer = null;
+        PeerState state = peers.get(socket);
+        if (state != null) {
+            state.inFlight--;
+        }
+    }
+
+    /**
+     * 本次下载不再向这个节点请求，它负责的块改由其他节点下载
+     */
+    private void markLacking(WebSocket socket, String reason) {
+        System.out.println(reason + "，本次下载不再向 " + socket.getRemoteSocketAddress() + " 请求");
+        PeerState state = peers.get(socket);
+        if (state == null) {
+            state = new PeerState();
+            peers.put(socket, state);
+        }
+        state.lacking = true;
+        state.inFlight = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.peer == socket) {
+                chunk.peer = null;
+                reassignedChunks.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 是否有还没下载、也没有节点负责的块
+     */
+    private boolean hasWaitingChunk() {
+        for (Chunk chunk : chunks) {
+            if (!chunk.done && chunk.peer == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,412 @@
+package blockchain.p2p;
+
+import blockchain.miner.BlockAssembler;
+import blockchain.msg.BlockAnnouncement;
+import blockchain.msg.PayloadTransfer;
+import blockchain.pojo.Block;
+import blockchain.util.HashUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import org.java_websocket.WebSocket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 紧凑区块广播
+ * 广播新区块时只发送区块头和每条数据的摘要（BlockAnnouncement），收到的节点先从本地的数据缓存中
+ * 按摘要找回数据重新组装区块，只有缓存中没有的数据才向发送方请求。数据缓存记录本节点收到的提交和
+ * 请求来的数据，按字节数设上限，按最近使用淘汰。
+ * 数据量小、摘要反而更长的区块仍然完整广播。
+ * Guava 缓存的过期只在之后读写缓存时顺带清理，对方一直不响应、也没有新的广播时不会触发，
+ * 所以由定时线程每秒清理一次等待数据的区块，超时后改为请求完整的最新区块。
+ * @author fanbin
+ * @date 2020/1/25
+ */
+public class CompactRelay {
+
+    /**
+     * 配置数据缓存字节上限的系统属性名
+     */
+    public static final String CACHE_BYTES_PROPERTY = "blockchain.p2p.payloadCacheBytes";
+
+    /**
+     * 等待对方响应数据请求的时间
+     */
+    public static final long PENDING_TTL_SECONDS = 30;
+
+    /**
+     * 最多同时等待的区块数
+     */
+    private static final int MAX_PENDING = 100;
+
+    /**
+     * 清理超时的等待区块的间隔
+     */
+    private static final long CLEANUP_INTERVAL_MS = 1000;
+
+    /**
+     * 一个区块最多的数据条数，超过时认为广播不合法
+     */
+    private static final int MAX_DIGESTS = 100000;
+
+    /**
+     * 每条摘要在消息中大约占的字符数：64 位十六进制加上引号和逗号
+     */
+    private static final int DIGEST_CHARS = 64 + 3;
+
+    /**
+     * 与网络交互的接口，由 P2PNode 实现
+     */
+    public interface Transport {
+
+        /**
+         * 向对方请求区块中缺少的数据
+         * @param socket 发来广播的连接
+         * @param request 请求
+         */
+        void requestPayloads(WebSocket socket, PayloadTransfer request);
+
+        /**
+         * 区块组装完成
+         * @param socket 发来广播的连接
+         * @param block 完整的区块
+         */
+        void blockAssembled(WebSocket socket, Block block);
+
+        /**
+         * 区块没能组装出来
+         * @param socket 发来广播的连接
+         * @param hash 区块哈希
+         * @param invalid 是否因为对方发来了不合法的数据（否则是对方没有这个区块或者响应超时）
+         */
+        void assemblyFailed(WebSocket socket, String hash, boolean invalid);
+    }
+
+    /**
+     * 等待数据的区块
+     */
+    private static final class Pending {
+
+        private final WebSocket source;
+
+        private final BlockAnnouncement announcement;
+
+        private final String[] payloads;
+
+        private final List<Integer> missing;
+
+        Pending(WebSocket source, BlockAnnouncement announcement, String[] payloads, List<Integer> missing) {
+            this.source = source;
+            this.announcement = announcement;
+            this.payloads = payloads;
+            this.missing = missing;
+        }
+    }
+
+    private final Transport transport;
+
+    /**
+     * 数据摘要 -> 数据
+     */
+    private final Cache<String, String> payloads;
+
+    /**
+     * 区块哈希 -> 等待数据的区块
+     */
+    private final Cache<String, Pending> pending;
+
+    private final ScheduledExecutorService timer;
+
+    private final AtomicLong sentAnnouncements = new AtomicLong();
+
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    private final AtomicLong assembledBlocks = new AtomicLong();
+
+    private final AtomicLong fetchedBlocks = new AtomicLong();
+
+    private final AtomicLong fetchedPayloads = new AtomicLong();
+
+    private final AtomicLong failedBlocks = new AtomicLong();
+
+    /**
+     * 从系统属性读取配置，默认数据缓存 64 MB
+     * @param transport 网络接口
+     */
+    public CompactRelay(Transport transport) {
+        this(transport, Long.getLong(CACHE_BYTES_PROPERTY, 64L * 1024 * 1024));
+    }
+
+    /**
+     * 构造方法
+     * @param transport 网络接口
+     * @param maxCacheBytes 数据缓存的字节上限（按字符数估算）
+     */
+    public CompactRelay(Transport transport, long maxCacheBytes) {
+        this.transport = transport;
+        this.payloads = CacheBuilder.newBuilder()
+                .maximumWeight(maxCacheBytes)
+                .weigher(new Weigher<String, String>() {
+                    @Override
+                    public int weigh(String digest, String payload) {
+                        return digest.length() + payload.length();
+                    }
+                })
+                .build();
+        this.pending = CacheBuilder.newBuilder()
+                .maximumSize(MAX_PENDING)
+                .expireAfterWrite(PENDING_TTL_SECONDS, TimeUnit.SECONDS)
+                .removalListener(new RemovalListener<String, Pending>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, Pending> notification) {
+                        if (notification.getCause() == RemovalCause.EXPIRED
+                                || notification.getCause() == RemovalCause.SIZE) {
+                            System.out.println("等待区块数据超时：" + notification.getKey());
+                            failedBlocks.incrementAndGet();
+                            CompactRelay.this.transport.assemblyFailed(notification.getValue().source,
+                                    notification.getKey(), false);
+                        }
+                    }
+                })
+                .build();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "compact-relay");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // 移除过期的等待区块，由移除监听器回调 assemblyFailed
+                    pending.cleanUp();
+                } catch (Exception ex) {
+                    System.out.println("清理等待数据的区块异常");
+                    ex.printStackTrace();
+                }
+            }
+        }, CLEANUP_INTERVAL_MS, CLEANUP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 记录本节点见过的数据（收到的提交），之后收到包含它的紧凑区块时不需要再请求
+     * @param payload 数据
+     */
+    public void addPayload(String payload) {
+        payloads.put(HashUtil.getSHA256(payload), payload);
+    }
+
+    /**
+     * 生成区块的紧凑广播
+     * @param block 区块
+     * @return 摘要比数据本身还长时返回 null，这时应该完整广播
+     */
+    public BlockAnnouncement announce(Block block) {
+        String data = block.getData();
+        if (data == null) {
+            return null;
+        }
+        List<String> list = BlockAssembler.decode(data);
+        boolean batch = list != null;
+        if (!batch) {
+            list = Collections.singletonList(data);
+        }
+        if ((long) list.size() * DIGEST_CHARS >= data.length()) {
+            return null;
+        }
+        List<String> digests = new ArrayList<String>(list.size());
+        for (String payload : list) {
+            digests.add(HashUtil.getSHA256(payload));
+        }
+        return new BlockAnnouncement(toHeader(block), batch, digests);
+    }
+
+    /**
+     * 记录发出了一个紧凑广播
+     * @param announcement 广播
+     * @param block 对应的完整区块
+     */
+    public void recordSent(BlockAnnouncement announcement, Block block) {
+        sentAnnouncements.incrementAndGet();
+        savedBytes.addAndGet(block.getData().length() - (long) announcement.getDigests().size() * DIGEST_CHARS);
+    }
+
+    /**
+     * 处理收到的紧凑广播：数据都在缓存中时直接组装，否则请求缺少的数据
+     * 调用前应该已经检查过区块头，并且确认本地没有这个区块。
+     * @param socket 来源连接
+     * @param announcement 广播
+     */
+    public void onAnnouncement(WebSocket socket, BlockAnnouncement announcement) {
+        String hash = announcement.getHeader().getHash();
+        List<String> digests = announcement.getDigests();
+        if (digests == null || digests.isEmpty() || digests.size() > MAX_DIGESTS
+                || (!announcement.isBatch() && digests.size() != 1)) {
+            failedBlocks.incrementAndGet();
+            transport.assemblyFailed(socket, hash, true);
+            return;
+        }
+        String[] found = new String[digests.size()];
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 0; i < found.length; i++) {
+            found[i] = payloads.getIfPresent(digests.get(i));
+            if (found[i] == null) {
+                missing.add(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            assembledBlocks.incrementAndGet();
+            transport.blockAssembled(socket, assemble(announcement, found));
+            return;
+        }
+        if (pending.asMap().putIfAbsent(hash, new Pending(socket, announcement, found, missing)) != null) {
+            return;
+        }
+        System.out.println("缓存中缺少区块 " + announcement.getHeader().getIndex() + " 的 " + missing.size()
+                + "/" + found.length + " 条数据，向对方请求");
+        transport.requestPayloads(socket, PayloadTransfer.request(hash, missing));
+    }
+
+    /**
+     * 处理对方响应的数据：检查摘要后补全区块
+     * @param socket 来源连接
+     * @param response 响应
+     */
+    public void onPayloads(WebSocket socket, PayloadTransfer response) {
+        if (response.getHash() == null) {
+            return;
+        }
+        Pending waiting = pending.getIfPresent(response.getHash());
+        if (waiting == null || waiting.source != socket) {
+            return;
+        }
+        // invalidate 的移除原因是 EXPLICIT，不会触发超时处理
+        pending.invalidate(response.getHash());
+        List<String> received = response.getPayloads();
+        if (received == null || received.isEmpty()) {
+            System.out.println("对方没有区块 " + response.getHash() + " 的数据");
+            failedBlocks.incrementAndGet();
+            transport.assemblyFailed(socket, response.getHash(), false);
+            return;
+        }
+        if (!waiting.missing.equals(response.getIndexes()) || received.size() != waiting.missing.size()) {
+            failedBlocks.incrementAndGet();
+            transport.assemblyFailed(socket, response.getHash(), true);
+            return;
+        }
+        List<String> digests = waiting.announcement.getDigests();
+        for (int i = 0; i < received.size(); i++) {
+            int index = waiting.missing.get(i);
+            String payload = received.get(i);
+            String digest = payload == null ? null : HashUtil.getSHA256(payload);
+            if (!digests.get(index).equals(digest)) {
+                System.out.println("对方发来的数据与摘要不符，区块：" + response.getHash());
+                failedBlocks.incrementAndGet();
+                transport.assemblyFailed(socket, response.getHash(), true);
+                return;
+            }
+            payloads.put(digest, payload);
+            waiting.payloads[index] = payload;
+        }
+        fetchedBlocks.incrementAndGet();
+        fetchedPayloads.addAndGet(received.size());
+        transport.blockAssembled(socket, assemble(waiting.announcement, waiting.payloads));
+    }
+
+    /**
+     * 从本地的区块中取出对方请求的数据
+     * @param block 请求的区块，本地没有时为 null
+     * @param request 请求
+     * @return 响应，没有这个区块或者请求的位置不合法时 payloads 为空
+     */
+    public static PayloadTransfer answer(Block block, PayloadTransfer request) {
+        List<Integer> indexes = request.getIndexes();
+        List<String> empty = Collections.emptyList();
+        if (block == null || block.getData() == null || indexes == null) {
+            return PayloadTransfer.response(request.getHash(), indexes, empty);
+        }
+        List<String> list = BlockAssembler.decode(block.getData());
+        if (list == null) {
+            list = Collections.singletonList(block.getData());
+        }
+        List<String> result = new ArrayList<String>(indexes.size());
+        for (Integer index : indexes) {
+            if (index == null || index < 0 || index >= list.size()) {
+                return PayloadTransfer.response(request.getHash(), indexes, empty);
+            }
+            result.add(list.get(index));
+        }
+        return PayloadTransfer.response(request.getHash(), indexes, result);
+    }
+
+    public long getSentAnnouncements() {
+        return sentAnnouncements.get();
+    }
+
+    /**
+     * 紧凑广播比完整广播少发送的字符数（估算）
+     * @return
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    /**
+     * 数据都在缓存中、直接组装出的区块数
+     * @return
+     */
+    public long getAssembledBlocks() {
+        return assembledBlocks.get();
+    }
+
+    /**
+     * 需要向对方请求数据的区块数
+     * @return
+     */
+    public long getFetchedBlocks() {
+        return fetchedBlocks.get();
+    }
+
+    public long getFetchedPayloads() {
+        return fetchedPayloads.get();
+    }
+
+    public long getFailedBlocks() {
+        return failedBlocks.get();
+    }
+
+    public long getCachedPayloads() {
+        return payloads.size();
+    }
+
+    private static Block assemble(BlockAnnouncement announcement, String[] found) {
+        Block header = announcement.getHeader();
+        String data = announcement.isBatch() ? BlockAssembler.encodePayloads(Arrays.asList(found)) : found[0];
+        Block block = new Block(header.getIndex(), header.getTimestamp(), header.getPreviousHash(), data);
+        block.setNonce(header.getNonce());
+        block.setHash(header.getHash());
+        return block;
+    }
+
+    private static Block toHeader(Block block) {
+        Block header = new Block(block.getIndex(), block.getTimestamp(), block.getPreviousHash(), null);
+        header.setNonce(block.getNonce());
+        header.setHash(block.getHash());
+        return header;
+    }
+}
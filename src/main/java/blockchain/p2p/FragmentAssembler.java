@@ -0,0 +1,186 @@
+package blockchain.p2p;
+
+import blockchain.miner.ParallelMiner;
+import blockchain.msg.Constant;
+import blockchain.msg.Frame;
+import blockchain.pojo.Block;
+import blockchain.pojo.BlockChain;
+import org.java_websocket.WebSocket;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分片消息的重组
+ * Java-WebSocket 1.3.4 不会把分片（fragment）重组成完整的消息，每个分片都交给 onFragment，
+ * 也不会再调用 onMessage。这里按连接收集分片，收到最后一个分片后拼成完整的消息；
+ * 累计字节数超过上限时丢弃这条消息剩下的分片。
+ * @author fanbin
+ * @date 2020/1/26
+ */
+public class FragmentAssembler {
+
+    /**
+     * 一个连接上正在重组的消息
+     */
+    private static final class Partial {
+
+        private final Framedata.Opcode opcode;
+
+        private final List<byte[]> parts = new ArrayList<byte[]>();
+
+        private long bytes;
+
+        /**
+         * 超过上限后丢弃剩下的分片，直到最后一个分片
+         */
+        private boolean discarding;
+
+        Partial(Framedata.Opcode opcode) {
+            this.opcode = opcode;
+        }
+    }
+
+    private final int maxBytes;
+
+    private final Map<WebSocket, Partial> partials = new ConcurrentHashMap<WebSocket, Partial>();
+
+    /**
+     * 构造方法
+     * @param maxBytes 一条消息重组后的字节上限
+     */
+    public FragmentAssembler(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 收到一个分片
+     * 同一个连接的分片由同一个线程按顺序交给这里，不会交错。
+     * @param socket 连接
+     * @param fragment 分片
+     * @return 收齐时返回完整的消息（文本消息为 String，二进制消息为 ByteBuffer），否则返回 null
+     * @throws IllegalStateException 消息超过字节上限，这条消息剩下的分片都会被丢弃
+     */
+    public Object append(WebSocket socket, Framedata fragment) {
+        Partial partial = partials.get(socket);
+        if (partial == null) {
+            if (fragment.getOpcode() == Framedata.Opcode.CONTINUOUS) {
+                // 没有开头的分片（开头的分片超过上限已被丢弃时不会走到这里），直接忽略
+                return null;
+            }
+            partial = new Partial(fragment.getOpcode());
+            partials.put(socket, partial);
+        }
+        ByteBuffer payload = fragment.getPayloadData();
+        if (!partial.discarding) {
+            partial.bytes += payload.remaining();
+            if (partial.bytes > maxBytes) {
+                partial.discarding = true;
+                partial.parts.clear();
+                if (fragment.isFin()) {
+                    partials.remove(socket);
+                }
+                throw new IllegalStateException("分片消息超过字节上限：" + partial.bytes);
+            }
+            byte[] bytes = new byte[payload.remaining()];
+            payload.duplicate().get(bytes);
+            partial.parts.add(bytes);
+        }
+        if (!fragment.isFin()) {
+            return null;
+        }
+        partials.remove(socket);
+        if (partial.discarding) {
+            return null;
+        }
+        ByteBuffer message = ByteBuffer.allocate((int) partial.bytes);
+        for (byte[] part : partial.parts) {
+            message.put(part);
+        }
+        message.flip();
+        if (partial.opcode == Framedata.Opcode.TEXT) {
+            return new String(message.array(), 0, message.limit(), StandardCharsets.UTF_8);
+        }
+        return message;
+    }
+
+    /**
+     * 连接断开后丢弃它没收齐的消息
+     * @param socket 连接
+     */
+    public void remove(WebSocket socket) {
+        partials.remove(socket);
+    }
+
+    public static void main(String[] args) throws Exception {
+        // 两端都使用 Java-WebSocket 1.3.4：节点以分片发送整个区块列表，客户端用 onFragment 重组后解码
+        ParallelMiner miner = new ParallelMiner();
+        BlockChain bc = new BlockChain(miner);
+        for (int i = 1; i <= 1000; i++) {
+            bc.addBlock(bc.generateNextBlock("data-" + i));
+        }
+        P2PNode node = new P2PNode(bc);
+        node.initNode(17001);
+        Thread.sleep(1000);
+
+        final FragmentAssembler assembler = new FragmentAssembler(32 * 1024 * 1024);
+        final CountDownLatch received = new CountDownLatch(1);
+        final int[] result = new int[2];
+        WebSocketClient client = new WebSocketClient(new URI("ws://127.0.0.1:17001")) {
+            @Override
+            public void onOpen(ServerHandshake handshakedata) {
+                send("{\"type\":" + Constant.HELLO + ",\"data\":\"" + P2PNode.PROTOCOL_VERSION + "\"}");
+                send(Frame.encode(Constant.REQ_BLOCK_CHAIN));
+            }
+
+            @Override
+            public void onFragment(Framedata frame) {
+                result[1]++;
+                Object message = assembler.append(this, frame);
+                if (message instanceof ByteBuffer) {
+                    ByteBuffer buffer = (ByteBuffer) message;
+                    if (Frame.readHeader(buffer) == Constant.RES_BLOCKS) {
+                        List<Block> blocks = Frame.decodeBlocks(buffer);
+                        if (blocks.size() > 1) {
+                            result[0] = blocks.size();
+                            received.countDown();
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void onMessage(String message) {
+            }
+
+            @Override
+            public void onMessage(ByteBuffer message) {
+            }
+
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                ex.printStackTrace();
+            }
+        };
+        client.connect();
+        boolean done = received.await(30, TimeUnit.SECONDS);
+        System.out.println(String.format("本地区块数 %d，收到分片 %d 个，重组后的区块数 %d，%s",
+                bc.getBlockChain().size(), result[1], result[0],
+                done && result[0] == bc.getBlockChain().size() ? "一致" : "不一致"));
+        System.exit(0);
+    }
+}
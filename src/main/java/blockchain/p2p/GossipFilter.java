@@ -0,0 +1,165 @@
+package blockchain.p2p;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.java_websocket.WebSocket;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 广播去重
+ * 记录最近见过的区块哈希，以及已知有这个区块的连接（发给本节点的、本节点发给过的）：
+ * 再次收到同一个区块时不再交给区块链管理器验证，广播最新区块时跳过已经有这个区块的连接，
+ * 区块的来源节点也就不会再收到自己发出的区块。
+ * 收到孤块后发出的同步请求也会记录一段时间，多个节点转发同一个孤块时只同步一次。
+ * 两个缓存都有容量上限，按最近使用淘汰。
+ * @author fanbin
+ * @date 2020/1/21
+ */
+public class GossipFilter {
+
+    /**
+     * 最多记录的区块数
+     */
+    public static final int MAX_SEEN_BLOCKS = 10000;
+
+    /**
+     * 最多记录的同步请求数
+     */
+    public static final int MAX_SEEN_REQUESTS = 1000;
+
+    /**
+     * 同步请求在多长时间内不重复发出
+     */
+    public static final long REQUEST_TTL_SECONDS = 30;
+
+    /**
+     * 区块哈希 -> 已知有这个区块的连接
+     */
+    private final Cache<String, Set<WebSocket>> seenBlocks = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SEEN_BLOCKS)
+            .build();
+
+    /**
+     * 最近发出过的同步请求
+     */
+    private final Cache<String, Boolean> seenRequests = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SEEN_REQUESTS)
+            .expireAfterWrite(REQUEST_TTL_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    /**
+     * 没有交给管理器的重复区块数
+     */
+    private final AtomicLong suppressedBlocks = new AtomicLong();
+
+    /**
+     * 广播时跳过的发送次数
+     */
+    private final AtomicLong suppressedRelays = new AtomicLong();
+
+    /**
+     * 没有重复发出的同步请求数
+     */
+    private final AtomicLong suppressedRequests = new AtomicLong();
+
+    /**
+     * 收到区块时检查是否见过，同时记录来源连接有这个区块
+     * @param hash 区块哈希
+     * @param from 来源连接
+     * @return 第一次见到时返回 true；见过时返回 false，不需要再处理
+     */
+    public boolean receive(String hash, WebSocket from) {
+        Set<WebSocket> created = newPeerSet();
+        Set<WebSocket> peers = seenBlocks.asMap().putIfAbsent(hash, created);
+        if (peers == null) {
+            created.add(from);
+            return true;
+        }
+        peers.add(from);
+        suppressedBlocks.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * 收到的区块没有交给管理器（队列已满）时撤销记录，之后再收到时重新处理
+     * @param hash 区块哈希
+     */
+    public void forget(String hash) {
+        seenBlocks.invalidate(hash);
+    }
+
+    /**
+     * 记录对方有这个区块（例如同步时从对方收到的区块）
+     * @param hash 区块哈希
+     * @param peer 连接
+     */
+    public void markKnown(String hash, WebSocket peer) {
+        peers(hash).add(peer);
+    }
+
+    /**
+     * 广播前检查对方是否已经有这个区块，没有时记录为已发送；没能发出时应该调用 unmarkRelayed 撤销
+     * @param hash 区块哈希
+     * @param to 目标连接
+     * @return 需要发送时返回 true
+     */
+    public boolean shouldRelay(String hash, WebSocket to) {
+        if (peers(hash).add(to)) {
+            return true;
+        }
+        suppressedRelays.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * 广播时没能发出（发送队列放不下被丢弃），撤销 shouldRelay 的记录
+     * @param hash 区块哈希
+     * @param to 目标连接
+     */
+    public void unmarkRelayed(String hash, WebSocket to) {
+        Set<WebSocket> peers = seenBlocks.getIfPresent(hash);
+        if (peers != null) {
+            peers.remove(to);
+        }
+    }
+
+    /**
+     * 发出同步请求前检查最近是否发出过同样的请求
+     * @param key 请求的标识
+     * @return 需要发出时返回 true
+     */
+    public boolean shouldRequest(String key) {
+        if (seenRequests.asMap().putIfAbsent(key, Boolean.TRUE) == null) {
+            return true;
+        }
+        suppressedRequests.incrementAndGet();
+        return false;
+    }
+
+    public long getSuppressedBlocks() {
+        return suppressedBlocks.get();
+    }
+
+    public long getSuppressedRelays() {
+        return suppressedRelays.get();
+    }
+
+    public long getSuppressedRequests() {
+        return suppressedRequests.get();
+    }
+
+    private Set<WebSocket> peers(String hash) {
+        Set<WebSocket> created = newPeerSet();
+        Set<WebSocket> peers = seenBlocks.asMap().putIfAbsent(hash, created);
+        return peers != null ? peers : created;
+    }
+
+    private static Set<WebSocket> newPeerSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<WebSocket, Boolean>());
+    }
+}
@@ -0,0 +1,268 @@
+package blockchain.p2p;
+
+import blockchain.pojo.Block;
+import blockchain.pojo.BlockChain;
+import blockchain.util.TokenBucket;
+import org.java_websocket.WebSocket;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 入站消息的分级检查，先做便宜的检查，越贵的检查越靠后：
+ * <ol>
+ * <li>SIZE：解析之前检查消息的字节数</li>
+ * <li>RATE：每个连接的消息数、字节数令牌桶</li>
+ * <li>STRUCTURE：解析后逐个检查区块的字段（哈希格式、高度、时间戳不能太超前、数据大小）</li>
+ * <li>LINKAGE：列表中相邻的区块高度连续、前一区块哈希相连</li>
+ * <li>POW：声明的哈希值满足难度要求</li>
+ * <li>CHAIN：交给区块链管理器后，重新计算哈希并与本地区块链对比（由 BlockChain 完成，这里只计数）</li>
+ * </ol>
+ * 每一级拒绝的消息数分别统计。
+ * @author fanbin
+ * @date 2020/1/24
+ */
+public class IngressFilter {
+
+    /**
+     * 配置单条消息字节上限的系统属性名
+     */
+    public static final String MAX_MESSAGE_BYTES_PROPERTY = "blockchain.p2p.maxMessageBytes";
+
+    /**
+     * 配置单个区块数据字节上限的系统属性名
+     */
+    public static final String MAX_BLOCK_BYTES_PROPERTY = "blockchain.p2p.maxBlockBytes";
+
+    /**
+     * 配置每个连接每秒消息数的系统属性名
+     */
+    public static final String RATE_MESSAGES_PROPERTY = "blockchain.p2p.rateMessages";
+
+    /**
+     * 配置每个连接每秒字节数的系统属性名
+     */
+    public static final String RATE_BYTES_PROPERTY = "blockchain.p2p.rateBytes";
+
+    /**
+     * 区块时间戳最多比本地时间超前多少
+     */
+    private static final long MAX_FUTURE_MILLIS = 2 * 60 * 60 * 1000L;
+
+    /**
+     * 检查的级别
+     */
+    public enum Stage {
+        SIZE, RATE, STRUCTURE, LINKAGE, POW, CHAIN
+    }
+
+    /**
+     * 一个连接的令牌桶
+     */
+    private static final class Buckets {
+
+        private final TokenBucket messages;
+
+        private final TokenBucket bytes;
+
+        Buckets(TokenBucket messages, TokenBucket bytes) {
+            this.messages = messages;
+            this.bytes = bytes;
+        }
+    }
+
+    private final int maxMessageBytes;
+
+    private final int maxBlockBytes;
+
+    private final double rateMessages;
+
+    private final double rateBytes;
+
+    private final Map<WebSocket, Buckets> buckets = new ConcurrentHashMap<WebSocket, Buckets>();
+
+    private final Map<Stage, AtomicLong> rejected = new EnumMap<Stage, AtomicLong>(Stage.class);
+
+    /**
+     * 从系统属性读取配置：默认单条消息 32 MB、单个区块数据 2 MB，每个连接每秒 500 条消息、16 MB
+     */
+    public IngressFilter() {
+        this(Integer.getInteger(MAX_MESSAGE_BYTES_PROPERTY, 32 * 1024 * 1024),
+                Integer.getInteger(MAX_BLOCK_BYTES_PROPERTY, 2 * 1024 * 1024),
+                Integer.getInteger(RATE_MESSAGES_PROPERTY, 500),
+                Integer.getInteger(RATE_BYTES_PROPERTY, 16 * 1024 * 1024));
+    }
+
+    /**
+     * 构造方法
+     * @param maxMessageBytes 单条消息字节上限
+     * @param maxBlockBytes 单个区块数据字节上限
+     * @param rateMessages 每个连接每秒的消息数，突发量为 2 秒的消息数
+     * @param rateBytes 每个连接每秒的字节数，突发量至少能容纳一条最大的消息
+     */
+    public IngressFilter(int maxMessageBytes, int maxBlockBytes, double rateMessages, double rateBytes) {
+        this.maxMessageBytes = maxMessageBytes;
+        this.maxBlockBytes = maxBlockBytes;
+        this.rateMessages = rateMessages;
+        this.rateBytes = rateBytes;
+        for (Stage stage : Stage.values()) {
+            rejected.put(stage, new AtomicLong());
+        }
+    }
+
+    /**
+     * 解析之前的检查：消息大小和连接的限流
+     * @param socket 来源连接
+     * @param bytes 消息的字节数（文本消息为字符数）
+     * @return 可以继续解析时返回 true
+     */
+    public boolean admit(WebSocket socket, int bytes) {
+        if (bytes > maxMessageBytes) {
+            return reject(Stage.SIZE, socket, "消息过大：" + bytes);
+        }
+        Buckets peer = buckets.get(socket);
+        if (peer == null) {
+            Buckets created = new Buckets(new TokenBucket(rateMessages, rateMessages * 2),
+                    new TokenBucket(rateBytes, Math.max(rateBytes, maxMessageBytes)));
+            peer = buckets.putIfAbsent(socket, created);
+            if (peer == null) {
+                peer = created;
+            }
+        }
+        // 两个桶都足够时才消耗，被拒绝的消息不占用任何一个桶的令牌；
+        // 两个桶只在这里消耗，锁住连接的桶后检查和消耗之间不会被其他线程插入
+        synchronized (peer) {
+            if (!peer.messages.canAcquire(1) || !peer.bytes.canAcquire(bytes)) {
+                return reject(Stage.RATE, socket, null);
+            }
+            peer.messages.tryAcquire(1);
+            peer.bytes.tryAcquire(bytes);
+        }
+        return true;
+    }
+
+    /**
+     * 解析后检查收到的区块或区块头，不计算哈希
+     * @param socket 来源连接
+     * @param blocks 区块，按高度排列
+     * @param headers 是否为区块头（data 为空）
+     * @return 没通过的检查级别，全部通过时返回 null
+     */
+    public Stage checkBlocks(WebSocket socket, List<Block> blocks, boolean headers) {
+        long maxTimestamp = System.currentTimeMillis() + MAX_FUTURE_MILLIS;
+        for (Block block : blocks) {
+            String error = checkStructure(block, headers, maxTimestamp);
+            if (error != null) {
+                reject(Stage.STRUCTURE, socket, error);
+                return Stage.STRUCTURE;
+            }
+        }
+        for (int i = 1; i < blocks.size(); i++) {
+            Block previous = blocks.get(i - 1);
+            Block block = blocks.get(i);
+            if (block.getIndex() != previous.getIndex() + 1 || block.getTimestamp() < previous.getTimestamp()
+                    || !block.getPreviousHash().equals(previous.getHash())) {
+                reject(Stage.LINKAGE, socket, "区块不相连，高度：" + block.getIndex());
+                return Stage.LINKAGE;
+            }
+        }
+        for (Block block : blocks) {
+            if (block.getIndex() > 0 && !BlockChain.isValidHash(block.getHash())) {
+                reject(Stage.POW, socket, "哈希值不满足难度要求，高度：" + block.getIndex());
+                return Stage.POW;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 分片重组时消息超过了字节上限
+     * @param socket 来源连接
+     * @param reason 原因
+     */
+    public void recordOversized(WebSocket socket, String reason) {
+        reject(Stage.SIZE, socket, reason);
+    }
+
+    public int getMaxMessageBytes() {
+        return maxMessageBytes;
+    }
+
+    /**
+     * 区块链管理器拒绝了来自其他节点的区块（哈希值错误或者与本地区块链不符）
+     */
+    public void recordChainReject() {
+        rejected.get(Stage.CHAIN).incrementAndGet();
+    }
+
+    /**
+     * 连接断开后删除它的令牌桶
+     * @param socket 连接
+     */
+    public void remove(WebSocket socket) {
+        buckets.remove(socket);
+    }
+
+    /**
+     * 每一级拒绝的消息数
+     * @return 级别名（小写） -> 拒绝数
+     */
+    public Map<String, Long> getRejected() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Map.Entry<Stage, AtomicLong> entry : rejected.entrySet()) {
+            result.put(entry.getKey().name().toLowerCase(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    private String checkStructure(Block block, boolean headers, long maxTimestamp) {
+        if (block == null) {
+            return "区块为空";
+        }
+        if (block.getIndex() < 0) {
+            return "高度错误：" + block.getIndex();
+        }
+        if (!isHash(block.getHash())) {
+            return "哈希值格式错误，高度：" + block.getIndex();
+        }
+        // 创世区块的前一区块哈希是 "0"
+        if (block.getIndex() > 0 ? !isHash(block.getPreviousHash()) : block.getPreviousHash() == null) {
+            return "前一区块哈希格式错误，高度：" + block.getIndex();
+        }
+        if (block.getTimestamp() <= 0 || block.getTimestamp() > maxTimestamp) {
+            return "时间戳错误，高度：" + block.getIndex();
+        }
+        if (headers ? block.getData() != null : block.getData() != null && block.getData().length() > maxBlockBytes) {
+            return "区块数据过大，高度：" + block.getIndex();
+        }
+        return null;
+    }
+
+    /**
+     * 是否为 64 个小写十六进制字符
+     */
+    private static boolean isHash(String value) {
+        if (value == null || value.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < 64; i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean reject(Stage stage, WebSocket socket, String reason) {
+        rejected.get(stage).incrementAndGet();
+        if (reason != null) {
+            System.out.println("拒绝来自 " + socket.getRemoteSocketAddress() + " 的消息（" + stage + "）：" + reason);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,152 @@
+package blockchain.p2p;
+
+import org.java_websocket.WebSocket;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 所有连接的发送队列
+ * 发送消息时先放进对方的队列，当前线程顺便尝试发送一次；发不完的由后台线程在 WebSocket 的发送缓冲区
+ * 写空后继续发送。一个接收慢的连接只会让自己的队列积压，不影响发给其他连接的消息。
+ * @author fanbin
+ * @date 2020/1/22
+ */
+public class OutboundQueues {
+
+    /**
+     * 配置每个连接发送队列字节上限的系统属性名
+     */
+    public static final String MAX_BYTES_PROPERTY = "blockchain.p2p.outboundBytes";
+
+    /**
+     * 配置队列超过上限时处理方式的系统属性名：drop 或 disconnect
+     */
+    public static final String POLICY_PROPERTY = "blockchain.p2p.outboundPolicy";
+
+    /**
+     * 有积压的消息时，后台线程检查发送缓冲区的间隔
+     */
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 没有积压的消息时，后台线程最长的等待时间
+     */
+    private static final long IDLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final long maxBytes;
+
+    private final OverflowPolicy policy;
+
+    private final Map<WebSocket, PeerOutbox> outboxes = new ConcurrentHashMap<WebSocket, PeerOutbox>();
+
+    private final Thread flusher;
+
+    /**
+     * 从系统属性读取配置，默认每个连接 16 MB，超过时丢弃消息
+     */
+    public OutboundQueues() {
+        this(Long.getLong(MAX_BYTES_PROPERTY, 16L * 1024 * 1024),
+                OverflowPolicy.parse(System.getProperty(POLICY_PROPERTY, "drop")));
+    }
+
+    /**
+     * 构造方法
+     * @param maxBytes 每个连接发送队列的字节上限
+     * @param policy 超过上限时的处理方式
+     */
+    public OutboundQueues(long maxBytes, OverflowPolicy policy) {
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "p2p-outbound");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * 发送消息
+     * @param socket 连接
+     * @param payload String、ByteBuffer 或者 BlockStream
+     * @return 放不下被丢弃时返回 false
+     */
+    public boolean send(WebSocket socket, Object payload) {
+        return send(socket, payload, false);
+    }
+
+    /**
+     * 发送最新区块通知，与队列中还没发出的最新区块通知合并
+     * @param socket 连接
+     * @param payload String、ByteBuffer 或者 BlockStream
+     * @return 放不下被丢弃时返回 false
+     */
+    public boolean sendLatest(WebSocket socket, Object payload) {
+        return send(socket, payload, true);
+    }
+
+    /**
+     * 连接断开后删除它的队列
+     * @param socket 连接
+     */
+    public void remove(WebSocket socket) {
+        outboxes.remove(socket);
+    }
+
+    /**
+     * 连接的发送队列
+     * @param socket 连接
+     * @return 没有发送过消息时返回 null
+     */
+    public PeerOutbox get(WebSocket socket) {
+        return outboxes.get(socket);
+    }
+
+    public Collection<PeerOutbox> getOutboxes() {
+        return outboxes.values();
+    }
+
+    private boolean send(WebSocket socket, Object payload, boolean latest) {
+        if (!socket.isOpen()) {
+            return false;
+        }
+        PeerOutbox outbox = outboxes.get(socket);
+        if (outbox == null) {
+            PeerOutbox created = new PeerOutbox(socket, maxBytes, policy);
+            outbox = outboxes.putIfAbsent(socket, created);
+            if (outbox == null) {
+                outbox = created;
+            }
+        }
+        if (!outbox.offer(payload, latest)) {
+            return false;
+        }
+        if (outbox.flush() > 0) {
+            LockSupport.unpark(flusher);
+        }
+        return true;
+    }
+
+    private void loop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            boolean pending = false;
+            for (PeerOutbox outbox : outboxes.values()) {
+                try {
+                    if (outbox.flush() > 0 && outbox.getSocket().isOpen()) {
+                        pending = true;
+                    }
+                } catch (Exception ex) {
+                    System.out.println("发送消息异常：" + outbox.getSocket().getRemoteSocketAddress());
+                    ex.printStackTrace();
+                }
+            }
+            LockSupport.parkNanos(this, pending ? FLUSH_INTERVAL_NANOS : IDLE_INTERVAL_NANOS);
+        }
+    }
+}
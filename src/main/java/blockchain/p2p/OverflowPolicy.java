@@ -0,0 +1,28 @@
+package blockchain.p2p;
+
+/**
+ * 发送队列超过字节上限时的处理方式
+ * @author fanbin
+ * @date 2020/1/22
+ */
+public enum OverflowPolicy {
+
+    /**
+     * 丢弃放不下的消息，连接保持（缺少的区块之后可以通过同步补上）
+     */
+    DROP,
+
+    /**
+     * 断开连接：对方长时间收不完消息，说明它跟不上本节点
+     */
+    DISCONNECT;
+
+    /**
+     * 解析配置值，忽略大小写
+     * @param value 配置值
+     * @return 处理方式
+     */
+    public static OverflowPolicy parse(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -1,20 +1,36 @@
 package blockchain.p2p;
 
+import blockchain.msg.BlockAnnouncement;
+import blockchain.msg.BlockStream;
 import blockchain.msg.Constant;
+import blockchain.msg.Frame;
 import blockchain.msg.Message;
+import blockchain.msg.PayloadTransfer;
+import blockchain.msg.SyncRequest;
 import blockchain.pojo.Block;
 import blockchain.pojo.BlockChain;
+import blockchain.pojo.BlockChain.AcceptResult;
+import blockchain.pojo.ChainManager;
 import com.alibaba.fastjson.JSON;
 import org.java_websocket.WebSocket;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.handshake.ServerHandshake;
 import org.java_websocket.server.WebSocketServer;
 
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * P2P 网络节点
@@ -24,19 +40,112 @@ import java.util.List;
 public class P2PNode {
 
     /**
-     * 与本节点连接的其他节点的信息
+     * 本节点支持的协议版本（通过 HELLO 交换，取双方的较小值）
+     * 1 - 二进制消息帧
+     * 2 - 按区间同步区块（REQ_HEADERS、REQ_BLOCK_RANGE）
+     * 3 - 紧凑区块广播（CMPCT_BLOCK、REQ_PAYLOADS、RES_PAYLOADS）
+     * 4 - 整个区块列表以一条消息的多个分片发送，接收方在 onFragment 中重组
      */
-    private List<WebSocket> sockets;
+    public static final int PROTOCOL_VERSION = 4;
+
+    /**
+     * 一次最多返回的区块头数
+     */
+    private static final int MAX_HEADERS = 2000;
+
+    /**
+     * 一次最多返回的区块数
+     */
+    private static final int MAX_RANGE_BLOCKS = 500;
+
+    /**
+     * 与本节点连接的其他节点的信息，多个连接线程会同时修改，遍历远多于修改
+     */
+    private final List<WebSocket> sockets = new CopyOnWriteArrayList<WebSocket>();
+
+    /**
+     * 已协商使用二进制协议的连接 -> 协议版本，不在其中的连接使用 JSON 消息
+     */
+    private final Map<WebSocket, Integer> protocols = new ConcurrentHashMap<WebSocket, Integer>();
+
 
     /**
      * 本地区块链
      */
     private BlockChain blockChain;
 
+    /**
+     * 区块链管理器：收到的区块都交给它在单个线程上处理
+     */
+    private ChainManager chainManager;
+
+    /**
+     * 区块下载调度器：同步时同时向多个节点请求区块
+     */
+    private BlockDownloader downloader;
+
+    /**
+     * 广播去重：见过的区块不再验证，已经有最新区块的连接不再发送
+     */
+    private final GossipFilter gossip = new GossipFilter();
+
+    /**
+     * 每个连接的发送队列：接收慢的连接不会拖住其他连接，积压的最新区块通知只发送最新的一个
+     */
+    private final OutboundQueues outbound = new OutboundQueues();
+
+    /**
+     * 连接管理器：连接数上限、断线重连、按分数淘汰连接
+     */
+    private final PeerManager peerManager;
+
+    /**
+     * 入站检查：解析前检查消息大小和限流，解析后先做不需要计算哈希的检查
+     */
+    private final IngressFilter ingress = new IngressFilter();
+
+    /**
+     * 分片消息的重组：Java-WebSocket 1.3.4 只把分片交给 onFragment，不会重组后调用 onMessage
+     */
+    private final FragmentAssembler fragments = new FragmentAssembler(ingress.getMaxMessageBytes());
+
+    /**
+     * 紧凑区块广播：只发送区块头和数据摘要，对方缺少的数据再单独请求
+     */
+    private final CompactRelay relay;
+
     public BlockChain getBlockChain() {
         return blockChain;
     }
 
+    public ChainManager getChainManager() {
+        return chainManager;
+    }
+
+    public BlockDownloader getDownloader() {
+        return downloader;
+    }
+
+    public GossipFilter getGossip() {
+        return gossip;
+    }
+
+    public OutboundQueues getOutbound() {
+        return outbound;
+    }
+
+    public PeerManager getPeerManager() {
+        return peerManager;
+    }
+
+    public CompactRelay getCompactRelay() {
+        return relay;
+    }
+
+    public IngressFilter getIngress() {
+        return ingress;
+    }
+
     public List<WebSocket> getSockets() {
         return sockets;
     }
@@ -46,10 +155,90 @@ public class P2PNode {
      * @param blockChain
      */
     public P2PNode(BlockChain blockChain) {
-        // 初始化节点列表
-        sockets = new ArrayList<WebSocket>();
-        //
         this.blockChain = blockChain;
+        this.peerManager = new PeerManager(UUID.randomUUID().toString(), new PeerManager.Dialer() {
+            @Override
+            public WebSocket dial(String uri) throws Exception {
+                return P2PNode.this.dial(uri);
+            }
+        });
+        // 主链最新区块变化后广播一次；收到孤块时向来源节点同步缺少的区块，正在下载或者最近同步过时不再重复请求
+        this.chainManager = new ChainManager(blockChain, new ChainManager.Listener() {
+            @Override
+            public void onTipChanged(Block tip) {
+                broadcastLatestBlock();
+            }
+
+            @Override
+            public void onOrphan(Block block, Object origin) {
+                if (block.getIndex() > P2PNode.this.blockChain.getLastBlock().getIndex()
+                        && !downloader.isDownloading() && gossip.shouldRequest(block.getHash())) {
+                    startSync((WebSocket) origin);
+                }
+            }
+
+            @Override
+            public void onResult(Object origin, Block block, AcceptResult result) {
+                if (result == AcceptResult.INVALID) {
+                    ingress.recordChainReject();
+                    // 哈希值只检查了难度，没有重新计算：对方可能用真实的区块哈希配上篡改过的数据，
+                    // 撤销见过的记录，之后其他节点发来的正确区块仍然会被处理
+                    gossip.forget(block.getHash());
+                }
+                peerManager.recordResult(origin, result);
+            }
+        });
+        this.downloader = new BlockDownloader(chainManager, new BlockDownloader.Transport() {
+            @Override
+            public List<WebSocket> peers() {
+                List<WebSocket> peers = new ArrayList<WebSocket>();
+                for (WebSocket socket : sockets) {
+                    Integer protocol = protocols.get(socket);
+                    if (protocol != null && protocol >= 2) {
+                        peers.add(socket);
+                    }
+                }
+                return peers;
+            }
+
+            @Override
+            public void requestRange(WebSocket socket, int from, int to) {
+                sendSyncRequest(socket, Constant.REQ_BLOCK_RANGE, SyncRequest.range(from, to));
+            }
+
+            @Override
+            public void downloadFinished(WebSocket source, boolean more) {
+                if (more && source.isOpen()) {
+                    requestHeaders(source);
+                } else {
+                    System.out.println("已同步到高度 " + P2PNode.this.blockChain.getLastBlock().getIndex());
+                }
+            }
+        });
+        this.relay = new CompactRelay(new CompactRelay.Transport() {
+            @Override
+            public void requestPayloads(WebSocket socket, PayloadTransfer request) {
+                outbound.send(socket, JSON.toJSONString(new Message(Constant.REQ_PAYLOADS, JSON.toJSONString(request))));
+            }
+
+            @Override
+            public void blockAssembled(WebSocket socket, Block block) {
+                if (!chainManager.offerBlock(block, socket)) {
+                    gossip.forget(block.getHash());
+                }
+            }
+
+            @Override
+            public void assemblyFailed(WebSocket socket, String hash, boolean invalid) {
+                gossip.forget(hash);
+                if (invalid) {
+                    peerManager.recordResult(socket, AcceptResult.INVALID);
+                } else if (socket.isOpen()) {
+                    // 对方没有这个区块的数据了，改为请求对方完整的最新区块
+                    outbound.send(socket, reqLatestBlockMsg());
+                }
+            }
+        });
     }
 
     /**
@@ -62,19 +251,34 @@ public class P2PNode {
             @Override
             public void onOpen(WebSocket conn, ClientHandshake handshake) {
                 System.out.println("server:被客户端连接：" + conn.getRemoteSocketAddress());
+                if (!peerManager.inboundOpened(conn)) {
+                    System.out.println("server:入站连接数已满，拒绝：" + conn.getRemoteSocketAddress());
+                    conn.close(CloseFrame.POLICY_VALIDATION, "连接数已满");
+                    return;
+                }
                 sockets.add(conn);
+                outbound.send(conn, helloMsg());
+                outbound.send(conn, nodeInfoMsg());
+            }
+
+            @Override
+            public void onWebsocketPong(WebSocket conn, Framedata f) {
+                peerManager.pong(conn);
             }
 
             @Override
             public void onClose(WebSocket conn, int code, String reason, boolean remote) {
                 System.out.println("server:连接被关闭：" + conn.getRemoteSocketAddress());
-                sockets.remove(conn);
+                removeSocket(conn);
             }
 
             @Override
             public void onMessage(WebSocket conn, String message) {
                 System.out.println("server:收到客户端的信息，来自：" + conn.getRemoteSocketAddress());
                 System.out.println("server:收到客户端的信息，内容是：" + message);
+                if (!ingress.admit(conn, message.length())) {
+                    return;
+                }
                 try {
                     handleMessage(conn, JSON.parseObject(message, Message.class));
                 } catch (Exception ex) {
@@ -84,10 +288,30 @@ public class P2PNode {
                 }
             }
 
+            @Override
+            public void onMessage(WebSocket conn, ByteBuffer message) {
+                System.out.println("server:收到客户端的二进制消息，来自：" + conn.getRemoteSocketAddress()
+                        + "，字节数：" + message.remaining());
+                if (!ingress.admit(conn, message.remaining())) {
+                    return;
+                }
+                try {
+                    handleFrame(conn, message);
+                } catch (Exception ex) {
+                    System.out.println("处理二进制消息异常");
+                    ex.printStackTrace();
+                }
+            }
+
+            @Override
+            public void onFragment(WebSocket conn, Framedata fragment) {
+                receiveFragment(conn, fragment);
+            }
+
             @Override
             public void onError(WebSocket conn, Exception ex) {
                 System.out.println("server:连接发生错误：" + conn.getRemoteSocketAddress());
-                sockets.remove(conn);
+                removeSocket(conn);
                 ex.printStackTrace();
             }
 
@@ -102,61 +326,135 @@ public class P2PNode {
     }
 
     /**
-     * 连接到远程节点
+     * 连接到远程节点：交给连接管理器记录为连接目标，断开后会自动重连
      * @param remote 远程节点的地址 ws://127.0.0.1:7001
      */
     public void connectToNode(String remote) {
+        if (!peerManager.addTarget(remote)) {
+            System.out.println("已经连接过这个节点，或者出站连接数已满：" + remote);
+        }
+    }
 
-        // 从 remote 当中获取主机地址
-        String host = remote.split(":")[1].split("//")[1];
-
-        for (WebSocket socket : sockets) {
-            InetSocketAddress address = socket.getRemoteSocketAddress();
-            if (address.getHostName().equals(host)) {
-                return;
+    /**
+     * 建立到远程节点的连接
+     * @param remote 远程节点的地址
+     * @return 正在建立的连接
+     * @throws URISyntaxException 地址错误
+     */
+    private WebSocket dial(String remote) throws URISyntaxException {
+        final WebSocketClient client = new WebSocketClient(new URI(remote)) {
+            @Override
+            public void onOpen(ServerHandshake handshakedata) {
+                System.out.println("client:连接服务端成功");
+                peerManager.outboundOpened(this);
+                sockets.add(this);
+                outbound.send(this, helloMsg());
+                outbound.send(this, nodeInfoMsg());
+                outbound.send(this, reqLatestBlockMsg());
             }
-        }
 
-        try {
+            @Override
+            public void onWebsocketPong(WebSocket conn, Framedata f) {
+                peerManager.pong(this);
+            }
 
-            final WebSocketClient client = new WebSocketClient(new URI(remote)) {
-                @Override
-                public void onOpen(ServerHandshake handshakedata) {
-                    System.out.println("client:连接服务端成功");
-                    sockets.add(this);
-                    this.send(reqLatestBlockMsg());
+            @Override
+            public void onMessage(String message) {
+                System.out.println("client:收到服务端的信息：" + message);
+                if (!ingress.admit(this, message.length())) {
+                    return;
                 }
-
-                @Override
-                public void onMessage(String message) {
-                    System.out.println("client:收到服务端的信息：" + message);
-                    try {
-                        handleMessage(this, JSON.parseObject(message, Message.class));
-                    } catch (Exception ex) {
-                        System.out.println("处理消息异常");
-                        System.out.println("消息内容：" + message);
-                        ex.printStackTrace();
-                    }
+                try {
+                    handleMessage(this, JSON.parseObject(message, Message.class));
+                } catch (Exception ex) {
+                    System.out.println("处理消息异常");
+                    System.out.println("消息内容：" + message);
+                    ex.printStackTrace();
                 }
+            }
 
-                @Override
-                public void onClose(int code, String reason, boolean remote) {
-                    System.out.println("client:与服务端断开连接");
-                    sockets.remove(this);
+            @Override
+            public void onMessage(ByteBuffer message) {
+                System.out.println("client:收到服务端的二进制消息，字节数：" + message.remaining());
+                if (!ingress.admit(this, message.remaining())) {
+                    return;
+                }
+                try {
+                    handleFrame(this, message);
+                } catch (Exception ex) {
+                    System.out.println("处理二进制消息异常");
+                    ex.printStackTrace();
                 }
+            }
+
+            @Override
+            public void onFragment(Framedata frame) {
+                receiveFragment(this, frame);
+            }
+
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+                System.out.println("client:与服务端断开连接");
+                removeSocket(this);
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                System.out.println("client:与服务端连接出错");
+                removeSocket(this);
+            }
+        };
+        client.connect();
+        return client;
+    }
 
-                @Override
-                public void onError(Exception ex) {
-                    System.out.println("client:与服务端连接出错");
-                    sockets.remove(this);
+    /**
+     * 收到一个分片：收齐后与 onMessage 一样检查并处理完整的消息
+     * @param socket 远程连接
+     * @param fragment 分片
+     */
+    private void receiveFragment(WebSocket socket, Framedata fragment) {
+        Object message;
+        try {
+            message = fragments.append(socket, fragment);
+        } catch (IllegalStateException ex) {
+            ingress.recordOversized(socket, ex.getMessage());
+            return;
+        }
+        if (message == null) {
+            return;
+        }
+        try {
+            if (message instanceof String) {
+                String text = (String) message;
+                if (ingress.admit(socket, text.length())) {
+                    handleMessage(socket, JSON.parseObject(text, Message.class));
+                }
+            } else {
+                ByteBuffer buffer = (ByteBuffer) message;
+                System.out.println("收到分片重组的二进制消息，字节数：" + buffer.remaining());
+                if (ingress.admit(socket, buffer.remaining())) {
+                    handleFrame(socket, buffer);
                 }
-            };
-            client.connect();
+            }
         } catch (Exception ex) {
-            System.out.println("客户端初始化异常");
+            System.out.println("处理分片消息异常");
             ex.printStackTrace();
         }
+    }
 
+    /**
+     * 连接关闭或出错后清理它的状态
+     * @param socket 连接
+     */
+    private void removeSocket(WebSocket socket) {
+        sockets.remove(socket);
+        protocols.remove(socket);
+        downloader.peerClosed(socket);
+        outbound.remove(socket);
+        ingress.remove(socket);
+        fragments.remove(socket);
+        peerManager.closed(socket);
     }
 
     /**
@@ -165,15 +463,164 @@ public class P2PNode {
      */
     private void broadcast(String message) {
         for (WebSocket socket : sockets) {
-            socket.send(message);
+            outbound.send(socket, message);
         }
     }
 
     /**
-     * 广播最新区块
+     * 广播最新区块：按每个连接协商的协议发送，每种编码都只生成一次；
+     * 支持紧凑区块的连接只发送区块头和数据摘要（数据很少时仍然发送完整区块）；
+     * 跳过已经有这个区块的连接，包括区块的来源节点
      */
     public void broadcastLatestBlock() {
-        broadcast(resLatestBlockMsg());
+        Block last = blockChain.getLastBlock();
+        List<Block> latest = Collections.singletonList(last);
+        String text = null;
+        ByteBuffer frame = null;
+        BlockAnnouncement announcement = null;
+        String compact = null;
+        boolean announced = false;
+        for (WebSocket socket : sockets) {
+            if (!gossip.shouldRelay(last.getHash(), socket)) {
+                continue;
+            }
+            Integer protocol = protocols.get(socket);
+            if (protocol != null && protocol >= 3 && !announced) {
+                announced = true;
+                announcement = relay.announce(last);
+                if (announcement != null) {
+                    compact = JSON.toJSONString(new Message(Constant.CMPCT_BLOCK, JSON.toJSONString(announcement)));
+                }
+            }
+            boolean sent;
+            if (protocol != null && protocol >= 3 && compact != null) {
+                sent = outbound.sendLatest(socket, compact);
+                if (sent) {
+                    relay.recordSent(announcement, last);
+                }
+            } else if (protocol != null) {
+                if (frame == null) {
+                    frame = Frame.encodeBlocks(Constant.RES_BLOCKS, latest);
+                }
+                sent = outbound.sendLatest(socket, frame.duplicate());
+            } else {
+                if (text == null) {
+                    text = resBlocksMsg(latest);
+                }
+                sent = outbound.sendLatest(socket, text);
+            }
+            if (!sent) {
+                // 发送队列放不下被丢弃，对方并没有收到，撤销记录，下次广播时还会发给它
+                gossip.unmarkRelayed(last.getHash(), socket);
+            }
+        }
+    }
+
+    /**
+     * 向对方发送最新区块
+     * @param socket 远程连接
+     */
+    private void sendLatestBlock(WebSocket socket) {
+        Block last = blockChain.getLastBlock();
+        gossip.markKnown(last.getHash(), socket);
+        sendBlocks(socket, Collections.singletonList(last));
+    }
+
+    /**
+     * 向对方发送区块数据，按协商的协议编码
+     * @param socket 远程连接
+     * @param blocks 区块
+     */
+    private void sendBlocks(WebSocket socket, List<Block> blocks) {
+        if (protocols.containsKey(socket)) {
+            outbound.send(socket, Frame.encodeBlocks(Constant.RES_BLOCKS, blocks));
+        } else {
+            outbound.send(socket, resBlocksMsg(blocks));
+        }
+    }
+
+    /**
+     * 向对方发送整个区块列表
+     * 对方支持协议版本 4 时分段编码，作为一条消息的多个分片发出，不会一次生成整个区块列表；
+     * 更早的节点收不到分片消息（Java-WebSocket 1.3.4 不重组分片），仍然发送一条完整的消息。
+     * @param socket 远程连接
+     */
+    private void sendBlockChain(WebSocket socket) {
+        List<Block> blocks = blockChain.getBlockChain();
+        Integer protocol = protocols.get(socket);
+        if (protocol != null && protocol >= 4) {
+            // 上一次请求的区块列表还没发完时不再生成（计算长度要遍历整条区块链，可能从磁盘读取区块）
+            PeerOutbox outbox = outbound.get(socket);
+            if (outbox != null && outbox.isStreaming()) {
+                System.out.println("区块列表还在发送，忽略重复的请求：" + socket.getRemoteSocketAddress());
+                return;
+            }
+            outbound.send(socket, BlockStream.binary(Constant.RES_BLOCKS, blocks));
+        } else {
+            sendBlocks(socket, blocks);
+        }
+    }
+
+    /**
+     * 向对方发送同步请求，按协商的协议编码
+     * @param socket 远程连接
+     * @param type REQ_HEADERS 或 REQ_BLOCK_RANGE
+     * @param request 同步请求
+     */
+    private void sendSyncRequest(WebSocket socket, int type, SyncRequest request) {
+        if (protocols.containsKey(socket)) {
+            outbound.send(socket, Frame.encodeSyncRequest(type, request));
+        } else {
+            outbound.send(socket, JSON.toJSONString(new Message(type, JSON.toJSONString(request))));
+        }
+    }
+
+    /**
+     * 向对方发送区块头
+     * @param socket 远程连接
+     * @param headers 区块头
+     */
+    private void sendHeaders(WebSocket socket, List<Block> headers) {
+        if (protocols.containsKey(socket)) {
+            outbound.send(socket, Frame.encodeBlocks(Constant.RES_HEADERS, headers));
+        } else {
+            outbound.send(socket, JSON.toJSONString(new Message(Constant.RES_HEADERS, JSON.toJSONString(headers))));
+        }
+    }
+
+    /**
+     * 开始向对方同步：对方支持按区间同步时先请求区块头，否则请求整个区块列表
+     * @param socket 远程连接
+     */
+    private void startSync(WebSocket socket) {
+        Integer protocol = protocols.get(socket);
+        if (protocol != null && protocol >= 2) {
+            System.out.println("向对方请求区块头");
+            requestHeaders(socket);
+        } else {
+            System.out.println("向对方请求整个区块列表");
+            requestBlockChain(socket);
+        }
+    }
+
+    /**
+     * 用本地主链的区块定位向对方请求区块头
+     * @param socket 远程连接
+     */
+    private void requestHeaders(WebSocket socket) {
+        sendSyncRequest(socket, Constant.REQ_HEADERS, SyncRequest.headers(blockChain.getBlockLocator(), MAX_HEADERS));
+    }
+
+    /**
+     * 向对方请求整个区块列表
+     * @param socket 远程连接
+     */
+    private void requestBlockChain(WebSocket socket) {
+        if (protocols.containsKey(socket)) {
+            outbound.send(socket, Frame.encode(Constant.REQ_BLOCK_CHAIN));
+        } else {
+            outbound.send(socket, reqBlockChainMsg());
+        }
     }
 
     /**
@@ -187,50 +634,262 @@ public class P2PNode {
         switch (message.getType()) {
             // 收到请求最新区块链的消息
             case Constant.REQ_LATEST_BLOCK:
-                socket.send(resLatestBlockMsg());
+                sendLatestBlock(socket);
                 break;
             // 收到请求整个区块列表的消息
             case Constant.REQ_BLOCK_CHAIN:
-                socket.send(resBlockChainMsg());
+                sendBlockChain(socket);
                 break;
             // 收到对方发来的区块数据（最新区块或整个区块列表）
             case Constant.RES_BLOCKS:
-                handleBlockResponse(message.getData());
+                handleBlockResponse(socket, JSON.parseArray(message.getData(), Block.class));
+                break;
+            // 收到对方支持的二进制协议版本
+            case Constant.HELLO:
+                handleHello(socket, message.getData());
+                break;
+            // 收到对方的节点编号
+            case Constant.NODE_INFO:
+                peerManager.nodeInfo(socket, message.getData());
+                break;
+            // 收到区块头请求
+            case Constant.REQ_HEADERS:
+                handleHeadersRequest(socket, JSON.parseObject(message.getData(), SyncRequest.class));
+                break;
+            // 收到对方发来的区块头
+            case Constant.RES_HEADERS:
+                handleHeaders(socket, JSON.parseArray(message.getData(), Block.class));
+                break;
+            // 收到一段区块的请求
+            case Constant.REQ_BLOCK_RANGE:
+                handleRangeRequest(socket, JSON.parseObject(message.getData(), SyncRequest.class));
+                break;
+            // 收到紧凑区块广播
+            case Constant.CMPCT_BLOCK:
+                handleAnnouncement(socket, JSON.parseObject(message.getData(), BlockAnnouncement.class));
+                break;
+            // 收到区块数据的请求
+            case Constant.REQ_PAYLOADS:
+                handlePayloadsRequest(socket, JSON.parseObject(message.getData(), PayloadTransfer.class));
+                break;
+            // 收到对方发来的区块数据
+            case Constant.RES_PAYLOADS:
+                relay.onPayloads(socket, JSON.parseObject(message.getData(), PayloadTransfer.class));
                 break;
         }
     }
 
+    /**
+     * 处理收到的二进制消息：直接从缓冲区解码，不经过字符串
+     * @param socket 远程连接
+     * @param buffer 收到的帧
+     */
+    private void handleFrame(WebSocket socket, ByteBuffer buffer) {
+        int type = Frame.readHeader(buffer);
+        switch (type) {
+            case Constant.REQ_LATEST_BLOCK:
+                sendLatestBlock(socket);
+                break;
+            case Constant.REQ_BLOCK_CHAIN:
+                sendBlockChain(socket);
+                break;
+            case Constant.RES_BLOCKS:
+                handleBlockResponse(socket, Frame.decodeBlocks(buffer));
+                break;
+            case Constant.REQ_HEADERS:
+                handleHeadersRequest(socket, Frame.decodeSyncRequest(type, buffer));
+                break;
+            case Constant.RES_HEADERS:
+                handleHeaders(socket, Frame.decodeBlocks(buffer));
+                break;
+            case Constant.REQ_BLOCK_RANGE:
+                handleRangeRequest(socket, Frame.decodeSyncRequest(type, buffer));
+                break;
+            default:
+                System.out.println("未知的二进制消息类型：" + type);
+                break;
+        }
+    }
+
+    /**
+     * 处理握手消息：双方都支持二进制协议时，之后发给对方的消息改用二进制帧
+     * @param socket 远程连接
+     * @param data 对方支持的最高协议版本
+     */
+    private void handleHello(WebSocket socket, String data) {
+        int version = Math.min(PROTOCOL_VERSION, Integer.parseInt(data));
+        if (version >= 1) {
+            protocols.put(socket, version);
+            System.out.println("与 " + socket.getRemoteSocketAddress() + " 使用二进制协议，版本 " + version);
+        }
+    }
+
+    /**
+     * 处理区块头请求：从区块定位中第一个在本地主链上的区块之后开始返回区块头
+     * @param socket 远程连接
+     * @param request 同步请求
+     */
+    private void handleHeadersRequest(WebSocket socket, SyncRequest request) {
+        List<Block> blocks = blockChain.getBlockChain();
+        int fork = 0;
+        for (String hash : request.getLocator()) {
+            Block block = blockChain.getBlockByHash(hash);
+            if (block != null && block.getIndex() < blocks.size()
+                    && blocks.get(block.getIndex()).getHash().equals(hash)) {
+                fork = block.getIndex();
+                break;
+            }
+        }
+        int limit = Math.max(0, Math.min(request.getLimit(), MAX_HEADERS));
+        int end = (int) Math.min(blocks.size(), (long) fork + 1 + limit);
+        List<Block> headers = new ArrayList<Block>(Math.max(0, end - fork - 1));
+        for (int i = fork + 1; i < end; i++) {
+            Block block = blocks.get(i);
+            Block header = new Block(block.getIndex(), block.getTimestamp(), block.getPreviousHash(), null);
+            header.setNonce(block.getNonce());
+            header.setHash(block.getHash());
+            headers.add(header);
+        }
+        sendHeaders(socket, headers);
+    }
+
+    /**
+     * 处理收到的区块头：检查区块头相连且满足难度要求，然后只请求本地缺少的那一段区块
+     * @param socket 远程连接
+     * @param headers 区块头
+     */
+    private void handleHeaders(WebSocket socket, List<Block> headers) {
+        if (headers.isEmpty()) {
+            System.out.println("对方没有更多的区块，同步结束");
+            return;
+        }
+        if (!checkIngress(socket, headers, true)) {
+            System.out.println("区块头不合法，同步结束");
+            return;
+        }
+        if (blockChain.getBlockByHash(headers.get(0).getPreviousHash()) == null) {
+            System.out.println("区块头与本地主链不相连，同步结束");
+            return;
+        }
+        int missing = -1;
+        for (int i = 0; i < headers.size() && missing < 0; i++) {
+            if (!blockChain.hasBlock(headers.get(i).getHash())) {
+                missing = i;
+            }
+        }
+        if (missing < 0) {
+            System.out.println("本地已经有这些区块，同步结束");
+            return;
+        }
+        // 分叉点：第一个不在本地主链上的区块头的前一个区块（可能有部分分支区块已经在侧链区块缓存中）
+        int fork = headers.get(0).getIndex() - 1;
+        for (Block header : headers) {
+            if (blockChain.getBlockByHash(header.getHash()) == null) {
+                break;
+            }
+            fork = header.getIndex();
+        }
+        // 分支逐段下载后逐个接收，累计工作量超过主链之前都保存在侧链区块缓存中。
+        // 分叉太深时缓存放不下整个分支（缓存按段淘汰，只按一半容量计算），改为请求整个区块列表，由 replaceChain 替换
+        if (blockChain.getLastBlock().getIndex() - fork >= blockChain.getMaxSideBlocks() / 2) {
+            System.out.println("分叉点高度 " + fork + "，分叉过深，侧链区块缓存放不下，向对方请求整个区块列表");
+            requestBlockChain(socket);
+            return;
+        }
+        // 区块头数达到上限时，对方可能还有更多区块，这些区块头对应的区块处理完后继续请求区块头
+        if (!downloader.start(socket, headers.subList(missing, headers.size()), headers.size() >= MAX_HEADERS)) {
+            System.out.println("正在下载区块，忽略收到的区块头");
+        }
+    }
+
+    /**
+     * 处理一段区块的请求，用 RES_BLOCKS 响应
+     * @param socket 远程连接
+     * @param request 同步请求
+     */
+    private void handleRangeRequest(WebSocket socket, SyncRequest request) {
+        List<Block> blocks = blockChain.getBlockChain();
+        int from = Math.max(1, request.getFrom());
+        int to = Math.min(Math.min(request.getTo(), blocks.size() - 1), from + MAX_RANGE_BLOCKS - 1);
+        if (from > to) {
+            sendBlocks(socket, Collections.<Block>emptyList());
+            return;
+        }
+        sendBlocks(socket, blocks.subList(from, to + 1));
+    }
+
     /**
      * 处理收到的最新区块链的消息
-     * @param data
-     */
-    private void handleBlockResponse(String data) {
-        List<Block> blocksReceived = JSON.parseArray(data, Block.class);
-        // 收到的最新区块
-        Block latestBlockReceived = blocksReceived.get(blocksReceived.size() - 1);
-        // 本地的最新区块
-        Block latestBlock = blockChain.getLastBlock();
-        // 判断收到的区块索引是否大于本地最新区块的索引，否则不处理
-        if (latestBlockReceived.getIndex() > latestBlock.getIndex()) {
-            // 判断能不能直接追加在本地区块链末尾
-            if (latestBlock.getHash().equals(latestBlockReceived.getPreviousHash())
-                    && latestBlock.getIndex() + 1 == latestBlockReceived.getIndex()) {
-                System.out.println("在本地区块链末尾追加接收到的新区块");
-                blockChain.addBlock(latestBlockReceived);
-                broadcastLatestBlock();
-            } else if (blocksReceived.size() == 1) {
-                // 如果收到的是最新区块，则请求整个区块列表
-                System.out.println("向对方请求整个区块列表");
-                broadcast(reqBlockChainMsg());
-            } else {
-                // 如果收到的是区块列表，则替换本地区块列表
-                System.out.println("替换本地的区块列表");
-                blockChain.replaceChain(blocksReceived);
-                broadcastLatestBlock();
+     * 只把区块交给区块链管理器排队，由管理线程追加、保存为侧链或者替换区块链，
+     * 主链变化后由管理器的事件触发广播。
+     * @param socket 来源连接
+     * @param blocksReceived 收到的区块
+     */
+    private void handleBlockResponse(WebSocket socket, List<Block> blocksReceived) {
+        if (!checkIngress(socket, blocksReceived, false)) {
+            return;
+        }
+        if (blocksReceived.size() > 1) {
+            // 对方有这些区块，之后它们成为最新区块时不再发给对方
+            gossip.markKnown(blocksReceived.get(blocksReceived.size() - 1).getHash(), socket);
+        }
+        if (downloader.onBlocks(socket, blocksReceived)) {
+            // 是下载调度器请求的那一段区块，由调度器按顺序提交
+            return;
+        }
+        if (blocksReceived.size() == 1) {
+            // 收到的是单个最新区块：见过的区块直接忽略，否则交给区块树处理，可能追加、保存为侧链或者切换分支
+            Block block = blocksReceived.get(0);
+            if (gossip.receive(block.getHash(), socket) && !chainManager.offerBlock(block, socket)) {
+                gossip.forget(block.getHash());
             }
-        } else {
-            System.out.println("对方的区块链不比本地的更长，不作处理");
+        } else if (!blocksReceived.isEmpty()) {
+            // 收到的是区块列表：比本地区块链长时替换本地区块列表
+            chainManager.offerChain(blocksReceived, socket);
+        }
+    }
+
+    /**
+     * 处理收到的紧凑区块广播：区块头通过检查、没见过并且本地没有时，由 CompactRelay 从缓存中组装区块
+     * 或者请求缺少的数据
+     * @param socket 来源连接
+     * @param announcement 广播
+     */
+    private void handleAnnouncement(WebSocket socket, BlockAnnouncement announcement) {
+        Block header = announcement.getHeader();
+        if (header == null || !checkIngress(socket, Collections.singletonList(header), true)) {
+            return;
+        }
+        if (!gossip.receive(header.getHash(), socket) || blockChain.hasBlock(header.getHash())) {
+            return;
         }
+        relay.onAnnouncement(socket, announcement);
+    }
+
+    /**
+     * 处理区块数据的请求，用 RES_PAYLOADS 响应
+     * @param socket 远程连接
+     * @param request 请求
+     */
+    private void handlePayloadsRequest(WebSocket socket, PayloadTransfer request) {
+        Block block = request.getHash() == null ? null : blockChain.getBlockByHash(request.getHash());
+        PayloadTransfer response = CompactRelay.answer(block, request);
+        outbound.send(socket, JSON.toJSONString(new Message(Constant.RES_PAYLOADS, JSON.toJSONString(response))));
+    }
+
+    /**
+     * 不计算哈希的入站检查（结构、相连、工作量证明），没通过时记为对方发送了不合法的区块
+     * @param socket 来源连接
+     * @param blocks 收到的区块或区块头
+     * @param headers 是否为区块头
+     * @return 通过时返回 true
+     */
+    private boolean checkIngress(WebSocket socket, List<Block> blocks, boolean headers) {
+        if (ingress.checkBlocks(socket, blocks, headers) == null) {
+            return true;
+        }
+        peerManager.recordResult(socket, AcceptResult.INVALID);
+        return false;
     }
 
     /**
@@ -254,9 +913,7 @@ public class P2PNode {
      * @return
      */
     private String resLatestBlockMsg() {
-        Block[] block = {this.blockChain.getLastBlock()};
-        String data = JSON.toJSONString(block);
-        return JSON.toJSONString(new Message(Constant.RES_BLOCKS, data));
+        return resBlocksMsg(Collections.singletonList(this.blockChain.getLastBlock()));
     }
 
     /**
@@ -264,10 +921,35 @@ public class P2PNode {
      * @return
      */
     private String resBlockChainMsg() {
-        String data = JSON.toJSONString(this.blockChain.getBlockChain());
+        return resBlocksMsg(this.blockChain.getBlockChain());
+    }
+
+    /**
+     * 生成消息文本：响应区块数据
+     * @param blocks 区块
+     * @return
+     */
+    private String resBlocksMsg(List<Block> blocks) {
+        String data = JSON.toJSONString(blocks);
         return JSON.toJSONString(new Message(Constant.RES_BLOCKS, data));
     }
 
+    /**
+     * 生成消息文本：本节点的编号
+     * @return
+     */
+    private String nodeInfoMsg() {
+        return JSON.toJSONString(new Message(Constant.NODE_INFO, peerManager.getNodeId()));
+    }
+
+    /**
+     * 生成消息文本：握手，告知对方本节点支持的二进制协议版本
+     * @return
+     */
+    private String helloMsg() {
+        return JSON.toJSONString(new Message(Constant.HELLO, String.valueOf(PROTOCOL_VERSION)));
+    }
+
     public static void main(String[] args) throws InterruptedException {
         // 创建区块链对象
         BlockChain bc = new BlockChain();
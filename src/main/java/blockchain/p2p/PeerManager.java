@@ -0,0 +1,584 @@
+package blockchain.p2p;
+
+import blockchain.pojo.BlockChain.AcceptResult;
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.CloseFrame;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 连接管理器
+ * 主动连接的节点按 host:port 记录为连接目标，断开后按指数退避重新连接；连接建立后双方交换节点编号，
+ * 连到自己或者与同一个节点有两条连接时关闭多余的一条（保留节点编号较小的一方发起的连接）。
+ * 入站、出站连接数都有上限，满了以后只有发来过不合法区块、信誉分低于 REPLACE_SCORE 的连接才会被新连接替换，
+ * 往返时间不参与替换，正常但较慢或者刚连上的连接不会因为新连接而被断开。
+ * 每个连接按发来的区块是否有用、是否不合法以及 ping 的往返时间计分，分数过低的连接会被断开。
+ * @author fanbin
+ * @date 2020/1/23
+ */
+public class PeerManager {
+
+    /**
+     * 配置入站连接数上限的系统属性名
+     */
+    public static final String MAX_INBOUND_PROPERTY = "blockchain.p2p.maxInbound";
+
+    /**
+     * 配置出站连接数上限的系统属性名
+     */
+    public static final String MAX_OUTBOUND_PROPERTY = "blockchain.p2p.maxOutbound";
+
+    /**
+     * 分数低于这个值的连接会被断开
+     */
+    public static final double EVICT_SCORE = -20;
+
+    /**
+     * 一个不合法的区块扣的分数（一个有用的区块加 1 分）
+     */
+    private static final double INVALID_PENALTY = 10;
+
+    /**
+     * 连接数已满时，信誉分（不计往返时间）低于这个值的连接才会被新连接替换：
+     * 不合法的区块比有用的区块多到抵消不了，往返时间长或者还没有发来有用区块的连接不会被替换
+     */
+    public static final double REPLACE_SCORE = -INVALID_PENALTY;
+
+    /**
+     * 往返时间每 100 毫秒扣 1 分
+     */
+    private static final double LATENCY_PENALTY_PER_MS = 0.01;
+
+    private static final long MIN_BACKOFF_MS = 1000;
+
+    private static final long MAX_BACKOFF_MS = 60000;
+
+    /**
+     * 发送 ping、检查分数的间隔
+     */
+    private static final long MAINTENANCE_INTERVAL_MS = 10000;
+
+    /**
+     * 建立出站连接
+     */
+    public interface Dialer {
+
+        /**
+         * 开始连接远程节点，连接结果通过 outboundOpened、closed 通知
+         * @param uri 远程节点的地址 ws://127.0.0.1:7001
+         * @return 连接
+         * @throws Exception 地址错误等
+         */
+        WebSocket dial(String uri) throws Exception;
+    }
+
+    /**
+     * 一个已建立的连接
+     */
+    public static final class Peer {
+
+        private final WebSocket socket;
+
+        private final boolean outbound;
+
+        /**
+         * 出站连接为连接目标的 host:port，入站连接为对方的地址
+         */
+        private final String address;
+
+        private volatile String nodeId;
+
+        private final AtomicLong usefulBlocks = new AtomicLong();
+
+        private final AtomicLong invalidBlocks = new AtomicLong();
+
+        private final AtomicLong duplicateBlocks = new AtomicLong();
+
+        /**
+         * ping 往返时间的指数移动平均，还没有测到时为 -1
+         */
+        private volatile double rttMillis = -1;
+
+        private volatile long pingSentAt;
+
+        Peer(WebSocket socket, boolean outbound, String address) {
+            this.socket = socket;
+            this.outbound = outbound;
+            this.address = address;
+        }
+
+        /**
+         * 分数：有用的区块加分，不合法的区块和往返时间扣分
+         * @return
+         */
+        public double score() {
+            double latency = rttMillis > 0 ? rttMillis * LATENCY_PENALTY_PER_MS : 0;
+            return reputation() - latency;
+        }
+
+        /**
+         * 信誉分：只由有用的区块和不合法的区块决定，用来选择被替换的连接
+         * @return
+         */
+        public double reputation() {
+            return usefulBlocks.get() - invalidBlocks.get() * INVALID_PENALTY;
+        }
+
+        public WebSocket getSocket() {
+            return socket;
+        }
+
+        public boolean isOutbound() {
+            return outbound;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public long getUsefulBlocks() {
+            return usefulBlocks.get();
+        }
+
+        public long getInvalidBlocks() {
+            return invalidBlocks.get();
+        }
+
+        public long getDuplicateBlocks() {
+            return duplicateBlocks.get();
+        }
+
+        public double getRttMillis() {
+            return rttMillis;
+        }
+    }
+
+    /**
+     * 主动连接的目标
+     */
+    private static final class Target {
+
+        private final String uri;
+
+        private final String key;
+
+        /**
+         * 当前的连接（包括正在建立的），没有时为 null
+         */
+        private WebSocket socket;
+
+        /**
+         * 连续失败次数，决定下次重连的等待时间
+         */
+        private int failures;
+
+        /**
+         * 对方的节点编号，连上过一次后才知道
+         */
+        private String nodeId;
+
+        Target(String uri, String key) {
+            this.uri = uri;
+            this.key = key;
+        }
+    }
+
+    private final String nodeId;
+
+    private final int maxInbound;
+
+    private final int maxOutbound;
+
+    private final Dialer dialer;
+
+    private final Map<WebSocket, Peer> peers = new ConcurrentHashMap<WebSocket, Peer>();
+
+    /**
+     * host:port -> 连接目标，只在管理器的锁内修改
+     */
+    private final Map<String, Target> targets = new ConcurrentHashMap<String, Target>();
+
+    private final ScheduledExecutorService timer;
+
+    private final AtomicLong evictedPeers = new AtomicLong();
+
+    private final AtomicLong rejectedPeers = new AtomicLong();
+
+    private final AtomicLong reconnects = new AtomicLong();
+
+    /**
+     * 从系统属性读取连接数上限，默认入站 32 个、出站 8 个
+     * @param nodeId 本节点的编号
+     * @param dialer 建立出站连接
+     */
+    public PeerManager(String nodeId, Dialer dialer) {
+        this(nodeId, Integer.getInteger(MAX_INBOUND_PROPERTY, 32), Integer.getInteger(MAX_OUTBOUND_PROPERTY, 8), dialer);
+    }
+
+    /**
+     * 构造方法
+     * @param nodeId 本节点的编号
+     * @param maxInbound 入站连接数上限
+     * @param maxOutbound 出站连接数上限
+     * @param dialer 建立出站连接
+     */
+    public PeerManager(String nodeId, int maxInbound, int maxOutbound, Dialer dialer) {
+        this.nodeId = nodeId;
+        this.maxInbound = maxInbound;
+        this.maxOutbound = maxOutbound;
+        this.dialer = dialer;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "peer-manager");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    maintain();
+                } catch (Exception ex) {
+                    System.out.println("连接维护异常");
+                    ex.printStackTrace();
+                }
+            }
+        }, MAINTENANCE_INTERVAL_MS, MAINTENANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 添加连接目标并开始连接
+     * @param uri 远程节点的地址 ws://127.0.0.1:7001
+     * @return 已经有这个目标，或者出站连接数已满并且没有可以替换的连接时返回 false
+     */
+    public synchronized boolean addTarget(String uri) {
+        String key = key(uri);
+        if (targets.containsKey(key)) {
+            return false;
+        }
+        if (targets.size() >= maxOutbound) {
+            Peer worst = worst(true);
+            if (worst == null || worst.reputation() >= REPLACE_SCORE) {
+                System.out.println("出站连接数已满，不再连接：" + uri);
+                rejectedPeers.incrementAndGet();
+                return false;
+            }
+            evict(worst, "为新的出站连接腾出位置");
+            removeTarget(worst.address);
+        }
+        Target target = new Target(uri, key);
+        targets.put(key, target);
+        dial(target);
+        return true;
+    }
+
+    /**
+     * 入站连接建立
+     * @param socket 连接
+     * @return 入站连接数已满并且没有可以替换的连接时返回 false，调用方应关闭连接
+     */
+    public synchronized boolean inboundOpened(WebSocket socket) {
+        if (count(false) >= maxInbound) {
+            Peer worst = worst(false);
+            if (worst == null || worst.reputation() >= REPLACE_SCORE) {
+                rejectedPeers.incrementAndGet();
+                return false;
+            }
+            evict(worst, "为新的入站连接腾出位置");
+        }
+        InetSocketAddress address = socket.getRemoteSocketAddress();
+        peers.put(socket, new Peer(socket, false, address == null ? "?" : address.getHostString() + ":" + address.getPort()));
+        return true;
+    }
+
+    /**
+     * 出站连接建立
+     * @param socket 连接
+     */
+    public synchronized void outboundOpened(WebSocket socket) {
+        Target target = targetOf(socket);
+        if (target == null) {
+            socket.close(CloseFrame.NORMAL, "连接目标已删除");
+            return;
+        }
+        peers.put(socket, new Peer(socket, true, target.key));
+    }
+
+    /**
+     * 连接关闭（或者没能建立）：是连接目标时按指数退避重新连接
+     * @param socket 连接
+     */
+    public synchronized void closed(WebSocket socket) {
+        peers.remove(socket);
+        Target target = targetOf(socket);
+        if (target != null) {
+            target.socket = null;
+            scheduleReconnect(target, false);
+        }
+    }
+
+    /**
+     * 收到对方的节点编号：连到自己或者重复连接时关闭多余的连接
+     * @param socket 连接
+     * @param remoteId 对方的节点编号
+     */
+    public synchronized void nodeInfo(WebSocket socket, String remoteId) {
+        Peer peer = peers.get(socket);
+        if (peer == null || remoteId == null) {
+            return;
+        }
+        if (nodeId.equals(remoteId)) {
+            System.out.println("连接到了自己，断开：" + peer.address);
+            if (peer.outbound) {
+                removeTarget(peer.address);
+            }
+            socket.close(CloseFrame.NORMAL, "连接到了自己");
+            return;
+        }
+        Target target = peer.outbound ? targets.get(peer.address) : null;
+        if (target != null) {
+            // 对方发来了节点信息才算连接成功，连上就被拒绝的连接不会重置退避时间
+            target.nodeId = remoteId;
+            target.failures = 0;
+        }
+        for (Peer other : peers.values()) {
+            if (other == peer || !remoteId.equals(other.nodeId)) {
+                continue;
+            }
+            // 两条连接通向同一个节点：双方都保留节点编号较小的一方发起的连接
+            String initiator = peer.outbound ? nodeId : remoteId;
+            String otherInitiator = other.outbound ? nodeId : remoteId;
+            Peer drop = initiator.compareTo(otherInitiator) < 0 ? other : peer;
+            System.out.println("与节点 " + remoteId + " 有重复的连接，断开：" + drop.address);
+            peers.remove(drop.socket);
+            drop.socket.close(CloseFrame.NORMAL, "重复的连接");
+            if (drop == peer) {
+                return;
+            }
+        }
+        peer.nodeId = remoteId;
+    }
+
+    /**
+     * 记录一个连接发来的区块的处理结果，分数过低时断开
+     * @param origin 来源连接
+     * @param result 处理结果
+     */
+    public void recordResult(Object origin, AcceptResult result) {
+        Peer peer = peers.get(origin);
+        if (peer == null) {
+            return;
+        }
+        switch (result) {
+            case EXTENDED:
+            case REORGANIZED:
+                peer.usefulBlocks.incrementAndGet();
+                break;
+            case INVALID:
+                peer.invalidBlocks.incrementAndGet();
+                break;
+            case DUPLICATE:
+                peer.duplicateBlocks.incrementAndGet();
+                break;
+            default:
+                break;
+        }
+        if (result == AcceptResult.INVALID && peer.score() < EVICT_SCORE) {
+            synchronized (this) {
+                evict(peer, "发来的不合法区块过多");
+            }
+        }
+    }
+
+    /**
+     * 收到 pong，更新往返时间
+     * @param socket 连接
+     */
+    public void pong(WebSocket socket) {
+        Peer peer = peers.get(socket);
+        if (peer == null || peer.pingSentAt == 0) {
+            return;
+        }
+        double rtt = (System.nanoTime() - peer.pingSentAt) / 1e6;
+        peer.rttMillis = peer.rttMillis < 0 ? rtt : peer.rttMillis * 0.8 + rtt * 0.2;
+        peer.pingSentAt = 0;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 连接的信息
+     * @param socket 连接
+     * @return 不是已建立的连接时返回 null
+     */
+    public Peer getPeer(WebSocket socket) {
+        return peers.get(socket);
+    }
+
+    public long getEvictedPeers() {
+        return evictedPeers.get();
+    }
+
+    public long getRejectedPeers() {
+        return rejectedPeers.get();
+    }
+
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    /**
+     * 定时向所有连接发送 ping，断开分数过低的连接
+     */
+    private void maintain() {
+        List<Peer> low = new ArrayList<Peer>();
+        for (Peer peer : peers.values()) {
+            if (peer.score() < EVICT_SCORE) {
+                low.add(peer);
+            } else if (peer.socket.isOpen()) {
+                peer.pingSentAt = System.nanoTime();
+                peer.socket.sendPing();
+            }
+        }
+        if (!low.isEmpty()) {
+            synchronized (this) {
+                for (Peer peer : low) {
+                    evict(peer, "分数过低");
+                }
+            }
+        }
+    }
+
+    /**
+     * 断开连接；是连接目标时按最长的间隔重连
+     */
+    private void evict(Peer peer, String reason) {
+        if (peers.remove(peer.socket) == null) {
+            return;
+        }
+        System.out.println(String.format("断开连接 %s（%s），分数 %.1f", peer.address, reason, peer.score()));
+        evictedPeers.incrementAndGet();
+        Target target = targetOf(peer.socket);
+        if (target != null) {
+            target.failures = Integer.MAX_VALUE;
+        }
+        peer.socket.close(CloseFrame.POLICY_VALIDATION, reason);
+    }
+
+    private void dial(Target target) {
+        try {
+            target.socket = dialer.dial(target.uri);
+        } catch (Exception ex) {
+            System.out.println("连接 " + target.uri + " 失败：" + ex.getMessage());
+            target.socket = null;
+            scheduleReconnect(target, false);
+        }
+    }
+
+    /**
+     * 按连续失败次数计算等待时间（1 秒起，每次翻倍，最长 60 秒，加上随机抖动）后重连
+     * @param target 连接目标
+     * @param keepFailures 不增加失败次数（对方已经通过入站连接连上了，只是稍后再检查）
+     */
+    private void scheduleReconnect(final Target target, boolean keepFailures) {
+        long delay = target.failures >= 16 ? MAX_BACKOFF_MS : Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << target.failures);
+        if (!keepFailures && target.failures < Integer.MAX_VALUE) {
+            target.failures++;
+        }
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reconnect(target);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void reconnect(Target target) {
+        if (targets.get(target.key) != target || target.socket != null) {
+            return;
+        }
+        if (target.nodeId != null && isConnected(target.nodeId)) {
+            scheduleReconnect(target, true);
+            return;
+        }
+        reconnects.incrementAndGet();
+        System.out.println("重新连接 " + target.uri);
+        dial(target);
+    }
+
+    private void removeTarget(String key) {
+        targets.remove(key);
+    }
+
+    private boolean isConnected(String remoteId) {
+        for (Peer peer : peers.values()) {
+            if (remoteId.equals(peer.nodeId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Target targetOf(WebSocket socket) {
+        for (Target target : targets.values()) {
+            if (target.socket == socket) {
+                return target;
+            }
+        }
+        return null;
+    }
+
+    private int count(boolean outbound) {
+        int count = 0;
+        for (Peer peer : peers.values()) {
+            if (peer.outbound == outbound) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 信誉分最低的连接
+     * @param outbound 出站还是入站连接
+     * @return 没有这类连接时返回 null
+     */
+    private Peer worst(boolean outbound) {
+        Peer worst = null;
+        for (Peer peer : peers.values()) {
+            if (peer.outbound == outbound && (worst == null || peer.reputation() < worst.reputation())) {
+                worst = peer;
+            }
+        }
+        return worst;
+    }
+
+    /**
+     * 连接目标的标识：host:port
+     */
+    private static String key(String uri) {
+        URI parsed = URI.create(uri);
+        int port = parsed.getPort() != -1 ? parsed.getPort() : ("wss".equals(parsed.getScheme()) ? 443 : 80);
+        return parsed.getHost() + ":" + port;
+    }
+}
@@ -0,0 +1,226 @@
+package blockchain.p2p;
+
+import blockchain.msg.BlockStream;
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.CloseFrame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 一个连接的发送队列
+ * 消息先放进队列，只有 WebSocket 自己的发送缓冲区已经写空（hasBufferedData() 为 false）时才交给它，
+ * 对方接收慢时消息积压在这里，并且受字节上限约束，不会让 WebSocket 的缓冲区无限增长。
+ * 超过上限时按 OverflowPolicy 丢弃消息或者断开连接；队列为空时一条消息即使超过上限也允许放入，
+ * 避免整个区块列表这样的大响应永远发不出去。
+ * 最新区块的通知会合并：队列中还有没发出的最新区块时，直接替换成更新的区块，只发送最新的一个。
+ * 整个区块列表这样的大消息以 BlockStream 放入队列，发送时每次只编码一个分片，不计入队列的字节数；
+ * 每个连接同时最多有一个 BlockStream 在队列中或者正在发送，之后的直接丢弃，
+ * 不读数据的对方反复请求整个区块列表也不会让队列无限增长。
+ * @author fanbin
+ * @date 2020/1/22
+ */
+public class PeerOutbox {
+
+    /**
+     * 队列中的一条消息
+     */
+    private static final class Entry {
+
+        /**
+         * String、ByteBuffer 或者 BlockStream
+         */
+        private Object payload;
+
+        private int bytes;
+
+        private final long enqueuedAt;
+
+        Entry(Object payload, int bytes, long enqueuedAt) {
+            this.payload = payload;
+            this.bytes = bytes;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private final WebSocket socket;
+
+    private final long maxBytes;
+
+    private final OverflowPolicy policy;
+
+    private final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+
+    /**
+     * 队列中还没发出的最新区块通知，没有时为 null
+     */
+    private Entry pendingLatest;
+
+    /**
+     * 队列中有 BlockStream（还没发出或者正在发送分片）
+     */
+    private boolean streaming;
+
+    private long queuedBytes;
+
+    private long sentMessages;
+
+    private long droppedMessages;
+
+    private long coalescedMessages;
+
+    private long totalLatencyNanos;
+
+    private long maxLatencyNanos;
+
+    /**
+     * 构造方法
+     * @param socket 连接
+     * @param maxBytes 队列的字节上限
+     * @param policy 超过上限时的处理方式
+     */
+    public PeerOutbox(WebSocket socket, long maxBytes, OverflowPolicy policy) {
+        this.socket = socket;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * 放入一条消息
+     * @param payload String、ByteBuffer 或者 BlockStream
+     * @param latest 是否为最新区块通知，是时与队列中还没发出的最新区块通知合并
+     * @return 放入（或合并）成功时返回 true，超过上限时返回 false
+     */
+    public boolean offer(Object payload, boolean latest) {
+        int bytes;
+        if (payload instanceof ByteBuffer) {
+            bytes = ((ByteBuffer) payload).remaining();
+        } else if (payload instanceof BlockStream) {
+            bytes = 0;
+        } else {
+            bytes = ((String) payload).length();
+        }
+        synchronized (this) {
+            if (payload instanceof BlockStream && streaming) {
+                droppedMessages++;
+                System.out.println("已有区块列表在发送，丢弃新的区块列表：" + socket.getRemoteSocketAddress());
+                return false;
+            }
+            if (latest && pendingLatest != null) {
+                queuedBytes += bytes - pendingLatest.bytes;
+                pendingLatest.payload = payload;
+                pendingLatest.bytes = bytes;
+                coalescedMessages++;
+                return true;
+            }
+            if (queue.isEmpty() || queuedBytes + bytes <= maxBytes) {
+                Entry entry = new Entry(payload, bytes, System.nanoTime());
+                queue.add(entry);
+                queuedBytes += bytes;
+                if (latest) {
+                    pendingLatest = entry;
+                }
+                if (payload instanceof BlockStream) {
+                    streaming = true;
+                }
+                return true;
+            }
+            droppedMessages++;
+            if (policy == OverflowPolicy.DISCONNECT) {
+                queue.clear();
+                pendingLatest = null;
+                streaming = false;
+                queuedBytes = 0;
+            }
+        }
+        if (policy == OverflowPolicy.DISCONNECT) {
+            System.out.println("发送队列已满，断开连接：" + socket.getRemoteSocketAddress());
+            // 对方不读数据时关闭握手也发不出去，直接断开 TCP 连接
+            socket.closeConnection(CloseFrame.POLICY_VALIDATION, "发送队列已满");
+        }
+        return false;
+    }
+
+    /**
+     * 在 WebSocket 的发送缓冲区写空时，把队列中的消息交给它
+     * @return 队列中还剩的消息数
+     */
+    public synchronized int flush() {
+        while (!queue.isEmpty() && socket.isOpen() && !socket.hasBufferedData()) {
+            Entry entry = queue.peek();
+            if (entry.payload instanceof BlockStream) {
+                // 分片之间不能插入其他消息，编码完所有分片后才处理队列中的下一条
+                BlockStream stream = (BlockStream) entry.payload;
+                ByteBuffer fragment = stream.next();
+                socket.sendFragmentedFrame(stream.getOpcode(), fragment, !stream.hasNext());
+                if (stream.hasNext()) {
+                    continue;
+                }
+                streaming = false;
+            }
+            queue.poll();
+            if (entry == pendingLatest) {
+                pendingLatest = null;
+            }
+            queuedBytes -= entry.bytes;
+            long latency = System.nanoTime() - entry.enqueuedAt;
+            totalLatencyNanos += latency;
+            maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+            sentMessages++;
+            if (entry.payload instanceof ByteBuffer) {
+                socket.send((ByteBuffer) entry.payload);
+            } else if (entry.payload instanceof String) {
+                socket.send((String) entry.payload);
+            }
+        }
+        return queue.size();
+    }
+
+    public WebSocket getSocket() {
+        return socket;
+    }
+
+    /**
+     * 是否有 BlockStream 还没发送完，有时不需要再为这个连接生成新的区块列表
+     * @return
+     */
+    public synchronized boolean isStreaming() {
+        return streaming;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public synchronized long getSentMessages() {
+        return sentMessages;
+    }
+
+    public synchronized long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    public synchronized long getCoalescedMessages() {
+        return coalescedMessages;
+    }
+
+    /**
+     * 消息从放入队列到交给 WebSocket 的平均时间（毫秒）
+     * @return
+     */
+    public synchronized double getAvgSendLatencyMillis() {
+        return sentMessages == 0 ? 0 : totalLatencyNanos / 1e6 / sentMessages;
+    }
+
+    /**
+     * 消息从放入队列到交给 WebSocket 的最长时间（毫秒）
+     * @return
+     */
+    public synchronized double getMaxSendLatencyMillis() {
+        return maxLatencyNanos / 1e6;
+    }
+}
@@ -1,12 +1,29 @@
 package blockchain.pojo;
 
+import blockchain.miner.ParallelMiner;
+import blockchain.store.BlockHashIndex;
+import blockchain.store.BlockLog;
+import blockchain.store.BlockStore;
+import blockchain.store.Checkpoint;
+import blockchain.util.BlockHasher;
 import blockchain.util.HashUtil;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntPredicate;
 
 /**
  * 区块链
+ * 修改区块链的方法（addBlock、acceptBlock、replaceChain）由写锁串行化，每次修改完成后发布一个不可变快照；
+ * 读取区块链的方法只读取当前快照，不加锁，也不会看到修改到一半的区块链。
+ * 节点运行时所有修改都由 ChainManager 在同一个线程上发起，写锁不会发生争用。
  * @author fanbin
  * @date 2020/1/3
  */
@@ -19,22 +36,219 @@ public class BlockChain {
     private static final char ZERO = '0';
 
     /**
-     * 区块列表：保存区块链当中的所有区块
+     * 预先计算好的创世区块 nonce 和哈希值，创建区块链时不必重新挖矿
      */
-    private List<Block> blockChain;
+    private static final long GENESIS_NONCE = 1545L;
+    private static final String GENESIS_HASH = "000c81784691c7bb8bacab6affb23312fd707bf0463e9afc217ce1a32ab3a4aa";
 
+    /**
+     * 配置检查点间隔（区块数）的系统属性名
+     */
+    public static final String CHECKPOINT_INTERVAL_PROPERTY = "blockchain.store.checkpointInterval";
+
+    /**
+     * 每追加多少个区块写一次检查点
+     */
+    private static final long CHECKPOINT_INTERVAL = Long.getLong(CHECKPOINT_INTERVAL_PROPERTY, 1000L);
+
+    /**
+     * 区块存储：保存区块链当中的所有区块，只能在持有写锁时修改
+     * 配置了区块日志时只有最新的区块在堆上，更早的区块按需从日志中读取
+     */
+    private final BlockStore store;
+
+    /**
+     * 最近一次发布的区块链快照，所有读操作都只读取快照
+     */
+    private final AtomicReference<List<Block>> snapshot = new AtomicReference<List<Block>>();
+
+    /**
+     * 写锁：同一时刻只有一个线程修改区块链
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * 挖矿引擎
+     */
+    private final ParallelMiner miner;
+
+    /**
+     * 区块日志：每个被接受的区块都会写入磁盘，为 null 时只在内存中保存区块链
+     */
+    private final BlockLog log;
+
+    /**
+     * 区块哈希 -> 区块高度 的索引
+     */
+    private final BlockHashIndex hashIndex = new BlockHashIndex();
+
+    /**
+     * 侧链区块缓存：用于在竞争分支之间切换，而不必重新同步整条区块链
+     */
+    private final BlockTree blockTree = new BlockTree();
+
+    /**
+     * 收到区块后的处理结果
+     */
+    public enum AcceptResult {
+        /**
+         * 追加到了主链末尾
+         */
+        EXTENDED,
+        /**
+         * 保存为侧链区块，主链不变
+         */
+        SIDE_BRANCH,
+        /**
+         * 侧链的累计工作量超过了主链，已切换到该分支
+         */
+        REORGANIZED,
+        /**
+         * 找不到父区块，需要从其他节点同步
+         */
+        ORPHAN,
+        /**
+         * 已经有这个区块
+         */
+        DUPLICATE,
+        /**
+         * 区块不合法
+         */
+        INVALID
+    }
+
+    /**
+     * 最新区块的版本号：每次追加区块或替换区块链都会加 1，正在进行的挖矿据此判断是否已过时
+     */
+    private final AtomicLong tipVersion = new AtomicLong();
+
+    /**
+     * 因最新区块变化而中途放弃的挖矿次数
+     */
+    private final AtomicLong abortedMiningCount = new AtomicLong();
+
+    /**
+     * 挖出后已无法追加（父区块已不是最新区块）的区块数
+     */
+    private final AtomicLong staleBlockCount = new AtomicLong();
+
+    /**
+     * 获取区块链的当前快照：不可变，之后区块链的修改不会反映到已获取的快照上
+     * @return
+     */
     public List<Block> getBlockChain() {
-        return blockChain;
+        return snapshot.get();
+    }
+
+    public BlockStore getStore() {
+        return store;
+    }
+
+    public ParallelMiner getMiner() {
+        return miner;
+    }
+
+    public long getAbortedMiningCount() {
+        return abortedMiningCount.get();
+    }
+
+    public long getStaleBlockCount() {
+        return staleBlockCount.get();
+    }
+
+    public long getSideBlockCount() {
+        return blockTree.size();
     }
 
     /**
-     * 构造方法
+     * 侧链区块缓存的容量：逐个接收的竞争分支在累计工作量超过主链之前都保存在这里，
+     * 分叉点之后的区块数超过容量时，较早的分支区块会被淘汰，分支再也连不到主链
+     * @return
+     */
+    public int getMaxSideBlocks() {
+        return blockTree.getMaxSideBlocks();
+    }
+
+    /**
+     * 构造方法：挖矿线程数取系统属性 blockchain.miner.threads，默认为 CPU 核数
      */
     public BlockChain() {
-        // 初始化区块列表
-        this.blockChain = new ArrayList<Block>();
-        // 向列表中添加第一个区块（创世区块）
-        blockChain.add(this.createGenesisBlock());
+        this(new ParallelMiner());
+    }
+
+    /**
+     * 构造方法
+     * @param miner 挖矿引擎
+     */
+    public BlockChain(ParallelMiner miner) {
+        this(miner, null);
+    }
+
+    /**
+     * 构造方法：如果区块日志中已有区块，则从日志中恢复区块链
+     * @param miner 挖矿引擎
+     * @param log 区块日志，为 null 时只在内存中保存区块链
+     */
+    public BlockChain(ParallelMiner miner, BlockLog log) {
+        this.miner = miner;
+        this.log = log;
+        Block genesisBlock = this.createGenesisBlock();
+        if (log == null) {
+            // 初始化区块存储，并添加第一个区块（创世区块）
+            this.store = new BlockStore();
+            appendToChain(genesisBlock);
+            publish();
+            return;
+        }
+        try {
+            if (log.size() == 0) {
+                log.append(genesisBlock);
+                hashIndex.put(genesisBlock.getHash(), genesisBlock.getIndex());
+            } else {
+                load(genesisBlock);
+            }
+            // 区块存储直接建立在区块日志之上，只有最新的区块会加载到堆上
+            this.store = BlockStore.fromSystemProperties(log);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("读取区块日志失败", ex);
+        }
+        publish();
+    }
+
+    /**
+     * 检查区块日志并建立哈希索引
+     * 检查点及其之前的区块是本节点验证过并已落盘的，不再验证；其后的区块逐个验证，
+     * 遇到不合法的区块时截断日志。
+     * @param genesisBlock 本节点的创世区块
+     */
+    private void load(Block genesisBlock) throws IOException {
+        long start = System.currentTimeMillis();
+        Checkpoint checkpoint = log.getCheckpoint();
+        long trusted = 0;
+        if (checkpoint != null && checkpoint.getHash().equals(log.read(checkpoint.getHeight()).getHash())) {
+            trusted = checkpoint.getHeight();
+        }
+        if (!genesisBlock.equals(log.read(0))) {
+            throw new IllegalStateException("区块日志中的创世区块与本节点不一致");
+        }
+        long size = log.size();
+        // 检查点之前的区块只读取头部中的哈希来建立索引
+        for (int i = 0; i <= trusted; i++) {
+            hashIndex.put(log.readHash(i), i);
+        }
+        Block previousBlock = log.read(trusted);
+        for (int i = (int) trusted + 1; i < size; i++) {
+            Block block = log.read(i);
+            if (!isValidBlock(block, previousBlock)) {
+                System.out.println("区块日志中的区块不合法，从该处截断，索引是：" + i);
+                log.truncate(i);
+                break;
+            }
+            hashIndex.put(block.getHash(), i);
+            previousBlock = block;
+        }
+        System.out.println(String.format("从区块日志中恢复了 %d 个区块（检查点高度 %d），耗时 %d ms",
+                log.size(), trusted, System.currentTimeMillis() - start));
     }
 
     /**
@@ -47,8 +261,9 @@ public class BlockChain {
                 1578000000000L,
                 "0",
                 "GENESIS BLOCK");
-        // 计算 nonce 和哈希值
-        calculateNonceAndHash(block);
+        // 使用预先计算好的 nonce 和哈希值，不再重新挖矿
+        block.setNonce(GENESIS_NONCE);
+        block.setHash(GENESIS_HASH);
         return block;
     }
 
@@ -58,16 +273,53 @@ public class BlockChain {
      * @return 新区块
      */
     public Block generateNextBlock(String data) {
-        // 获取最新的区块
-        Block previousBlock = getLastBlock();
-        // 根据最新区块的信息，创建下一个区块
-        Block block = new Block(previousBlock.getIndex() + 1,
-                System.currentTimeMillis(),
-                previousBlock.getHash(),
-                data);
-        // 计算下一个区块的 nonce 和 哈希值
-        calculateNonceAndHash(block);
-        return block;
+        while (true) {
+            // 记下开始挖矿时最新区块的版本号
+            final long version = tipVersion.get();
+            // 获取最新的区块
+            Block previousBlock = getLastBlock();
+            // 根据最新区块的信息，创建下一个区块
+            Block block = new Block(previousBlock.getIndex() + 1,
+                    System.currentTimeMillis(),
+                    previousBlock.getHash(),
+                    data);
+            // 计算下一个区块的 nonce 和 哈希值，一旦最新区块发生变化就放弃，在新的最新区块上重新开始
+            boolean found = miner.mine(block, new BooleanSupplier() {
+                @Override
+                public boolean getAsBoolean() {
+                    return tipVersion.get() != version;
+                }
+            });
+            if (found) {
+                return block;
+            }
+            abortedMiningCount.incrementAndGet();
+            System.out.println("最新区块已变化，在新的最新区块上重新挖矿");
+        }
+    }
+
+    /**
+     * 挖出下一个区块并追加到区块链末尾
+     * 如果挖出的区块在追加前已经过时（其他节点抢先延长了区块链），则在新的最新区块上重新挖
+     * @param data 区块中的数据
+     * @return 成功追加的新区块
+     */
+    public Block mineBlock(String data) {
+        while (true) {
+            Block block = generateNextBlock(data);
+            if (addBlock(block)) {
+                return block;
+            }
+            recordStaleBlock();
+            System.out.println("挖出的区块已过时，重新挖矿");
+        }
+    }
+
+    /**
+     * 记录一个挖出后已无法追加的区块
+     */
+    void recordStaleBlock() {
+        staleBlockCount.incrementAndGet();
     }
 
     /**
@@ -76,20 +328,171 @@ public class BlockChain {
      */
     public Block getLastBlock() {
         // 获取区块列表中的最后一个元素
-        return blockChain.get(blockChain.size() - 1);
+        List<Block> blocks = snapshot.get();
+        return blocks.get(blocks.size() - 1);
+    }
+
+    /**
+     * 按高度获取区块
+     * @param index 区块高度
+     * @return 区块，超出范围时返回 null
+     */
+    public Block getBlockByIndex(int index) {
+        List<Block> blocks = snapshot.get();
+        if (index < 0 || index >= blocks.size()) {
+            return null;
+        }
+        return blocks.get(index);
+    }
+
+    /**
+     * 按哈希获取区块
+     * @param hash 区块哈希
+     * @return 区块，不存在时返回 null
+     */
+    public Block getBlockByHash(final String hash) {
+        final List<Block> blocks = snapshot.get();
+        int height = hashIndex.find(hash, new IntPredicate() {
+            @Override
+            public boolean test(int height) {
+                return height < blocks.size() && blocks.get(height).getHash().equals(hash);
+            }
+        });
+        return height < 0 ? null : blocks.get(height);
+    }
+
+    /**
+     * 是否已经有这个区块（在主链上或者在侧链区块缓存中）
+     * @param hash 区块哈希
+     * @return
+     */
+    public boolean hasBlock(String hash) {
+        return getBlockByHash(hash) != null || blockTree.get(hash) != null;
+    }
+
+    /**
+     * 把区块追加到区块存储末尾，并更新哈希索引（需要持有写锁，追加后还需要发布快照）
+     */
+    private void appendToChain(Block block) {
+        store.add(block);
+        hashIndex.put(block.getHash(), block.getIndex());
+    }
+
+    /**
+     * 发布区块存储的当前内容，之后的读操作都能看到
+     */
+    private void publish() {
+        snapshot.set(store.snapshot());
     }
 
     /**
      * 向区块链中添加新的区块
      * @param block 要被添加的区块
+     * @return 是否添加成功
+     */
+    public boolean addBlock(Block block) {
+        writeLock.lock();
+        try {
+            // 先判断新区块的合法性，再添加
+            if (isValidBlock(block, getLastBlock())) {
+                if (log != null) {
+                    try {
+                        log.append(block);
+                        if (block.getIndex() % CHECKPOINT_INTERVAL == 0) {
+                            log.writeCheckpoint(block.getIndex(), block.getHash());
+                        }
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException("写入区块日志失败", ex);
+                    }
+                }
+                appendToChain(block);
+                publish();
+                tipVersion.incrementAndGet();
+                return true;
+            }
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 接收一个区块（通常来自其他节点），维护区块树并按累计工作量选择主链
+     * 能直接连到主链末尾的区块追加到主链；连到主链中间或侧链上的区块保存为侧链区块，
+     * 如果该分支的累计工作量超过主链，则就地重组，切换到该分支。
+     * @param block 收到的区块
+     * @return 处理结果
      */
-    public void addBlock(Block block) {
-        // 先判断新区块的合法性，再添加
-        if (isValidBlock(block, getLastBlock())) {
-            blockChain.add(block);
+    public AcceptResult acceptBlock(Block block) {
+        writeLock.lock();
+        try {
+            return doAcceptBlock(block);
+        } finally {
+            writeLock.unlock();
         }
     }
 
+    /**
+     * 接收区块（需要持有写锁）
+     */
+    private AcceptResult doAcceptBlock(Block block) {
+        if (block.getHash() == null || getBlockByHash(block.getHash()) != null
+                || blockTree.get(block.getHash()) != null) {
+            return AcceptResult.DUPLICATE;
+        }
+        Block lastBlock = getLastBlock();
+        if (lastBlock.getHash().equals(block.getPreviousHash())) {
+            return addBlock(block) ? AcceptResult.EXTENDED : AcceptResult.INVALID;
+        }
+        // 父区块在主链中间或者在侧链上
+        Block parent = getBlockByHash(block.getPreviousHash());
+        if (parent == null) {
+            parent = blockTree.get(block.getPreviousHash());
+        }
+        if (parent == null) {
+            return AcceptResult.ORPHAN;
+        }
+        if (!isValidBlock(block, parent)) {
+            return AcceptResult.INVALID;
+        }
+        blockTree.add(block);
+        List<Block> branch = blockTree.branchOf(block, this);
+        if (branch == null) {
+            return AcceptResult.SIDE_BRANCH;
+        }
+        int fork = branch.get(0).getIndex() - 1;
+        BigInteger branchWork = chainWork(fork);
+        for (Block branchBlock : branch) {
+            branchWork = branchWork.add(blockWork(branchBlock));
+        }
+        if (branchWork.compareTo(chainWork(lastBlock.getIndex())) <= 0) {
+            System.out.println("收到侧链区块，分叉点高度 " + fork + "，累计工作量不超过主链");
+            return AcceptResult.SIDE_BRANCH;
+        }
+        System.out.println("侧链的累计工作量超过主链，切换分支，分叉点高度 " + fork);
+        replaceSuffix(fork, branch);
+        return AcceptResult.REORGANIZED;
+    }
+
+    /**
+     * 单个区块的工作量：期望需要尝试的哈希次数，难度为 d 个前导 0 时为 16^d
+     * @param block 区块
+     * @return 工作量
+     */
+    public static BigInteger blockWork(Block block) {
+        return BigInteger.ONE.shiftLeft(4 * DIFFICULTY);
+    }
+
+    /**
+     * 主链从创世区块到指定高度的累计工作量
+     * 目前所有区块的难度相同，累计工作量等于区块数乘以单个区块的工作量。
+     * @param height 区块高度
+     * @return 累计工作量
+     */
+    public BigInteger chainWork(int height) {
+        return blockWork(getGenesisBlock()).multiply(BigInteger.valueOf(height + 1L));
+    }
+
     /**
      * 验证区块是否合法
      * @param block 待验证的区块
@@ -97,24 +500,9 @@ public class BlockChain {
      * @return 是否合法
      */
     public boolean isValidBlock(Block block, Block previousBlock) {
-        // 判断索引
-        if (block.getIndex() != previousBlock.getIndex() + 1) {
-            System.out.println("索引错误");
-            return false;
-        }
-        // 判断时间戳
-        if (block.getTimestamp() < previousBlock.getTimestamp()) {
-            System.out.println("时间戳错误");
-            return false;
-        }
-        // 判断前一区块哈希
-        if (!block.getPreviousHash().equals(previousBlock.getHash())) {
-            System.out.println("前一区块哈希错误");
-            return false;
-        }
-        // 判断哈希值是否正确
-        if (!HashUtil.getSHA256(block.originalString()).equals(block.getHash())) {
-            System.out.println("哈希值错误");
+        String error = checkBlock(block, previousBlock);
+        if (error != null) {
+            System.out.println(error);
             return false;
         }
         System.out.println("区块合法");
@@ -122,26 +510,48 @@ public class BlockChain {
     }
 
     /**
-     * 挖矿（计算 nonce 和哈希值）
-     * @param block
+     * 检查区块是否合法（不输出日志，可以在多个线程中同时调用）
+     * @param block 待验证的区块
+     * @param previousBlock 前一个区块
+     * @return 不合法的原因，合法时返回 null
      */
-    private void calculateNonceAndHash(Block block) {
-        // 从 0 开始尝试 nonce 值
-        long nonce = 0;
-        // 一直循环，每次给 nonce 值 +1，直到计算出符合要求的哈希推出循环
-        while (true) {
-            // 把当前的 nonce 值赋值给区块的 nonce 属性
-            block.setNonce(nonce);
-            // 计算哈希值
-            String hash = HashUtil.getSHA256(block.originalString());
-            // 如果哈希值符合难度要求，则把符合要求的哈希值赋值给区块的哈希值，结束循环
-            if (isValidHash(hash)) {
-                System.out.println("找到了合法的哈希值：" + hash);
-                block.setHash(hash);
-                break;
-            }
-            nonce++;
+    static String checkBlock(Block block, Block previousBlock) {
+        String error = checkHeader(block, previousBlock);
+        if (error != null) {
+            return error;
+        }
+        // 最后才重新计算哈希值，判断是否正确
+        if (!BlockHasher.current().matches(block)) {
+            return "哈希值错误";
         }
+        return null;
+    }
+
+    /**
+     * 只做不需要计算哈希的检查：索引、时间戳、前一区块哈希，以及声明的哈希值是否满足难度要求
+     * 这些检查都很便宜，不合法的区块在这里就会被拒绝，不用再计算一次 SHA-256。
+     * @param block 待验证的区块
+     * @param previousBlock 前一个区块
+     * @return 不合法的原因，通过时返回 null
+     */
+    static String checkHeader(Block block, Block previousBlock) {
+        // 判断索引
+        if (block.getIndex() != previousBlock.getIndex() + 1) {
+            return "索引错误";
+        }
+        // 判断时间戳
+        if (block.getTimestamp() < previousBlock.getTimestamp()) {
+            return "时间戳错误";
+        }
+        // 判断前一区块哈希
+        if (block.getPreviousHash() == null || !block.getPreviousHash().equals(previousBlock.getHash())) {
+            return "前一区块哈希错误";
+        }
+        // 判断声明的哈希值是否满足难度要求
+        if (!isValidHash(block.getHash())) {
+            return "工作量证明错误";
+        }
+        return null;
     }
 
     /**
@@ -149,7 +559,7 @@ public class BlockChain {
      * @param hash 哈希值
      * @return
      */
-    private boolean isValidHash(String hash) {
+    public static boolean isValidHash(String hash) {
         // 如果哈希值为空，则不合法
         if (hash == null) { return false; }
         // 循环判断哈希值的每个字符
@@ -163,16 +573,122 @@ public class BlockChain {
         return true;
     }
 
+    /**
+     * 验证摘要是否符合难度要求（直接统计原始字节的前导 0 半字节数）
+     * @param digest 32 字节摘要
+     * @return
+     */
+    public static boolean isValidHash(byte[] digest) {
+        return HashUtil.leadingZeroNibbles(digest) >= DIFFICULTY;
+    }
+
     /**
      * 替换区块链
+     * 先找到新区块链与本地区块链的分叉点，只验证并替换分叉点之后的区块，
+     * 重组的代价与分叉深度成正比，而不是与区块链长度成正比。
      * @param newBlockChain 新区块链数据
      */
     public void replaceChain(List<Block> newBlockChain) {
-        // 验证条件：新的区块链必须是合法的区块链 并且 新的区块链比当前的区块链长
-        if (isValidBlocks(newBlockChain) && newBlockChain.size() > blockChain.size()) {
-            // 验证通过，直接把新的区块列表赋值给区块链中的 blockChain 属性
-            blockChain = newBlockChain;
+        writeLock.lock();
+        try {
+            List<Block> blocks = snapshot.get();
+            // 验证条件：新的区块链比当前的区块链长，并且创世区块一样
+            if (newBlockChain.size() <= blocks.size() || !getGenesisBlock().equals(newBlockChain.get(0))) {
+                return;
+            }
+            // 找到分叉点：两条链最后一个相同的区块
+            int fork = findForkPoint(newBlockChain);
+            // 只验证分叉点之后的区块，第一个区块与本地分叉点区块相连
+            List<Block> suffix = newBlockChain.subList(fork + 1, newBlockChain.size());
+            List<Block> candidate = new ArrayList<Block>(suffix.size() + 1);
+            candidate.add(blocks.get(fork));
+            candidate.addAll(suffix);
+            int invalid = ChainValidator.findFirstInvalid(candidate, 1);
+            if (invalid >= 0) {
+                System.out.println("区块不合法，索引是：" + (fork + invalid));
+                return;
+            }
+            System.out.println(String.format("分叉点高度 %d，替换 %d 个区块，追加 %d 个区块",
+                    fork, blocks.size() - fork - 1, suffix.size()));
+            replaceSuffix(fork, suffix);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 用已经验证过的区块替换分叉点之后的区块
+     * 被换下来的区块放入侧链区块缓存，之后如果原分支重新胜出，可以直接切换回来。
+     * 需要持有写锁；替换完成后才发布新快照，读者要么看到替换前的区块链，要么看到替换后的。
+     * @param fork 分叉点高度
+     * @param suffix 分叉点之后的新区块
+     */
+    private void replaceSuffix(int fork, List<Block> suffix) {
+        // 被换下来的区块放入侧链区块缓存，并从哈希索引中删除
+        List<Block> blocks = snapshot.get();
+        for (Block block : blocks.subList(fork + 1, blocks.size())) {
+            hashIndex.remove(block.getHash(), block.getIndex());
+            blockTree.add(block);
         }
+        // 先截断区块存储，再改写区块日志：截断分叉点之后的区块，写入新的区块
+        store.truncate(fork + 1);
+        if (log != null) {
+            try {
+                log.truncate(fork + 1);
+                log.appendAll(suffix);
+                Block tip = suffix.get(suffix.size() - 1);
+                log.writeCheckpoint(tip.getIndex(), tip.getHash());
+            } catch (IOException ex) {
+                throw new UncheckedIOException("写入区块日志失败", ex);
+            }
+        }
+        // 追加新的区块，并更新哈希索引
+        for (Block block : suffix) {
+            appendToChain(block);
+            blockTree.remove(block.getHash());
+        }
+        publish();
+        tipVersion.incrementAndGet();
+    }
+
+    /**
+     * 查找分叉点：本地区块链与给定区块链在同一高度上哈希相同的最高区块
+     * 区块通过 previousHash 相连，某个高度上哈希相同则之前的区块也都相同，因此可以二分查找。
+     * @param other 另一条区块链（创世区块必须相同）
+     * @return 分叉点的高度
+     */
+    public int findForkPoint(List<Block> other) {
+        List<Block> blocks = snapshot.get();
+        int low = 0;
+        int high = Math.min(blocks.size(), other.size()) - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blocks.get(mid).getHash().equals(other.get(mid).getHash())) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 生成区块定位：最近 10 个区块的哈希，之后每次间隔加倍，最后是创世区块
+     * 对方据此找到两条链最后一个相同的区块，数量只与区块链长度的对数成正比。
+     * @return 区块哈希，从最新区块开始
+     */
+    public List<String> getBlockLocator() {
+        List<Block> blocks = snapshot.get();
+        List<String> locator = new ArrayList<String>();
+        int step = 1;
+        for (int height = blocks.size() - 1; height > 0; height -= step) {
+            locator.add(blocks.get(height).getHash());
+            if (locator.size() >= 10) {
+                step *= 2;
+            }
+        }
+        locator.add(blocks.get(0).getHash());
+        return locator;
     }
 
     /**
@@ -181,20 +697,27 @@ public class BlockChain {
      * @return 判断结果
      */
     public boolean isValidBlocks(List<Block> blockChain) {
+        int invalid = findFirstInvalidBlock(blockChain);
+        if (invalid >= 0) {
+            System.out.println("区块不合法，索引是：" + invalid);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 查找区块链中第一个不合法的区块
+     * @param blockChain 待判断的区块链数据
+     * @return 第一个不合法区块的索引，全部合法时返回 -1
+     */
+    public int findFirstInvalidBlock(List<Block> blockChain) {
         // 新区块链和当前区块链的创世区块链必须是一样的
         Block genesisBlock = blockChain.get(0);
         if (!getGenesisBlock().equals(genesisBlock)) {
-            return false;
+            return 0;
         }
-        // 新区块链里面所有的区块都是合法的
-        for (int i = 1; i < blockChain.size(); i++) {
-            // 如果有任意一个区块不合法，直接返回 false
-            if (!isValidBlock(blockChain.get(i), blockChain.get(i - 1))){
-                System.out.println("区块不合法，索引是：" + i);
-                return false;
-            }
-        }
-        return true;
+        // 新区块链里面所有的区块都是合法的：多个线程并行验证，找到第一个不合法的区块
+        return ChainValidator.findFirstInvalid(blockChain, 1);
     }
 
     /**
@@ -203,13 +726,13 @@ public class BlockChain {
      */
     private Block getGenesisBlock() {
         // 直接获取区块列表中的第一个元素即可
-        return blockChain.get(0);
+        return snapshot.get().get(0);
     }
 
     @Override
     public String toString() {
         return "BlockChain{" +
-                "blockChain=" + blockChain +
+                "blockChain=" + snapshot.get() +
                 '}';
     }
 
@@ -0,0 +1,137 @@
+package blockchain.pojo;
+
+import blockchain.miner.ParallelMiner;
+import blockchain.store.BlockLog;
+import com.alibaba.fastjson.JSON;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 区块链并发压力测试：多个读线程与多个写线程同时访问同一条区块链
+ * 写线程：两个线程在本地挖矿追加区块，一个线程在另一条区块链上挖矿，并像其他节点一样
+ * 把区块逐个推送过来（acceptBlock）或整条同步过来（replaceChain），触发分叉和重组。
+ * 读线程：不停地获取快照，检查快照内区块相连、高度连续、长度不减少，按哈希查找，并序列化为 JSON。
+ * 用法：BlockChainStress [秒数] [读线程数]；设置了系统属性 blockchain.data.dir 时同时检验分层存储。
+ * @author fanbin
+ * @date 2020/1/16
+ */
+public class BlockChainStress {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        BlockLog log = BlockLog.fromSystemProperties();
+
+        final BlockChain chain = new BlockChain(new ParallelMiner(1), log);
+        final BlockChain rival = new BlockChain(new ParallelMiner(2));
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong writes = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 2; i++) {
+            final int id = i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; running.get(); n++) {
+                        chain.mineBlock("miner-" + id + "-" + n);
+                        writes.incrementAndGet();
+                    }
+                }
+            }, "writer-" + i));
+        }
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int n = 0; running.get(); n++) {
+                    // 对手的算力更强，时常从本地区块链同步，使分叉保持较浅
+                    if (n % 20 == 0) {
+                        rival.replaceChain(chain.getBlockChain());
+                    }
+                    Block block = rival.mineBlock("rival-" + n);
+                    if (n % 5 == 4) {
+                        chain.replaceChain(rival.getBlockChain());
+                    } else {
+                        chain.acceptBlock(block);
+                    }
+                    writes.incrementAndGet();
+                }
+            }
+        }, "peer"));
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int lastSize = 0;
+                    while (running.get()) {
+                        try {
+                            List<Block> blocks = chain.getBlockChain();
+                            String error = check(chain, blocks, lastSize);
+                            if (error != null) {
+                                errors.incrementAndGet();
+                                System.out.println(Thread.currentThread().getName() + "：" + error);
+                            }
+                            lastSize = blocks.size();
+                            reads.incrementAndGet();
+                        } catch (RuntimeException ex) {
+                            errors.incrementAndGet();
+                            ex.printStackTrace();
+                        }
+                    }
+                }
+            }, "reader-" + i));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (log != null) {
+            log.close();
+        }
+        System.out.println(String.format("读线程 %d 个，读取快照 %d 次，写入 %d 次，区块高度 %d，重组产生的侧链区块 %d，错误 %d",
+                readers, reads.get(), writes.get(), chain.getLastBlock().getIndex(),
+                chain.getSideBlockCount(), errors.get()));
+        if (errors.get() > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 检查快照：长度不减少，末尾若干区块高度连续且相连，快照中的最新区块能按哈希查到或已被重组换下
+     * @return 错误信息，没有错误时返回 null
+     */
+    private static String check(BlockChain chain, List<Block> blocks, int lastSize) {
+        if (blocks.size() < lastSize) {
+            return "快照长度减少：" + lastSize + " -> " + blocks.size();
+        }
+        int from = Math.max(1, blocks.size() - 64);
+        for (int i = from; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            if (block.getIndex() != i) {
+                return "高度不连续：" + i + " -> " + block.getIndex();
+            }
+            if (!block.getPreviousHash().equals(blocks.get(i - 1).getHash())) {
+                return "区块不相连：" + i;
+            }
+        }
+        Block last = blocks.get(blocks.size() - 1);
+        Block found = chain.getBlockByHash(last.getHash());
+        if (found != null && !found.getHash().equals(last.getHash())) {
+            return "按哈希查到了错误的区块：" + last.getHash();
+        }
+        if (blocks.size() < 2000) {
+            JSON.toJSONString(blocks);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,101 @@
+package blockchain.pojo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 侧链区块缓存
+ * 保存最近收到的、合法但不在主链上的区块（竞争分支，以及重组时从主链上换下来的区块），
+ * 按哈希查找，容量有上限，最久未使用的区块会被淘汰。
+ * @author fanbin
+ * @date 2020/1/17
+ */
+public class BlockTree {
+
+    /**
+     * 配置侧链区块缓存容量的系统属性名
+     */
+    public static final String MAX_SIDE_BLOCKS_PROPERTY = "blockchain.tree.maxSideBlocks";
+
+    /**
+     * 区块哈希 -> 侧链区块
+     */
+    private final Cache<String, Block> sideBlocks;
+
+    /**
+     * 缓存容量
+     */
+    private final int maxSideBlocks;
+
+    public BlockTree() {
+        this(Integer.getInteger(MAX_SIDE_BLOCKS_PROPERTY, 1024));
+    }
+
+    public BlockTree(int maxSideBlocks) {
+        this.maxSideBlocks = maxSideBlocks;
+        this.sideBlocks = CacheBuilder.newBuilder()
+                .maximumSize(maxSideBlocks)
+                .build();
+    }
+
+    /**
+     * 加入侧链区块
+     * @param block 区块
+     */
+    public void add(Block block) {
+        sideBlocks.put(block.getHash(), block);
+    }
+
+    /**
+     * 按哈希查找侧链区块
+     * @param hash 区块哈希
+     * @return 区块，不存在时返回 null
+     */
+    public Block get(String hash) {
+        return hash == null ? null : sideBlocks.getIfPresent(hash);
+    }
+
+    /**
+     * 移除侧链区块（该区块已进入主链）
+     * @param hash 区块哈希
+     */
+    public void remove(String hash) {
+        sideBlocks.invalidate(hash);
+    }
+
+    public long size() {
+        return sideBlocks.size();
+    }
+
+    public int getMaxSideBlocks() {
+        return maxSideBlocks;
+    }
+
+    /**
+     * 从侧链区块向前回溯，直到遇到主链上的区块
+     * @param tip 分支的最后一个区块
+     * @param mainChain 主链
+     * @return 分支上的区块（按高度从低到高，不含主链上的分叉点区块）；
+     *         分支中有区块已被淘汰、无法连到主链时返回 null
+     */
+    public List<Block> branchOf(Block tip, BlockChain mainChain) {
+        List<Block> branch = new ArrayList<Block>();
+        Block current = tip;
+        while (true) {
+            branch.add(current);
+            Block parent = mainChain.getBlockByHash(current.getPreviousHash());
+            if (parent != null) {
+                Collections.reverse(branch);
+                return branch;
+            }
+            current = get(current.getPreviousHash());
+            if (current == null) {
+                return null;
+            }
+        }
+    }
+}
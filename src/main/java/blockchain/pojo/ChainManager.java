@@ -0,0 +1,458 @@
+package blockchain.pojo;
+
+import blockchain.pojo.BlockChain.AcceptResult;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 区块链管理器：所有修改区块链的操作都在同一个线程上执行
+ * P2P 回调线程、挖矿线程只把命令（收到的区块、候选区块链、同步到的一段区块、挖出的区块）放入有界队列，
+ * 管理线程每次取出一批命令依次执行。一批命令执行完后，主链最新区块如果变化了只发布一次事件，
+ * 突发的区块广播不会再让多个线程争抢写锁，也不会引起一连串重复的广播。
+ * 队列满时，来自其他节点的命令直接丢弃（之后可以通过同步补上），本地挖出的区块则等待队列空出位置。
+ * @author fanbin
+ * @date 2020/1/17
+ */
+public class ChainManager {
+
+    /**
+     * 配置命令队列容量的系统属性名
+     */
+    public static final String QUEUE_CAPACITY_PROPERTY = "blockchain.chain.queueCapacity";
+
+    /**
+     * 每批最多执行的命令数
+     */
+    private static final int MAX_BATCH = 256;
+
+    /**
+     * 区块链事件的回调，在管理线程上执行
+     */
+    public interface Listener {
+        /**
+         * 一批命令执行完后主链的最新区块变化了（追加或重组），每批最多回调一次
+         * @param tip 新的最新区块
+         */
+        void onTipChanged(Block tip);
+
+        /**
+         * 收到了找不到父区块的区块，需要向来源节点同步，每批对每个来源最多回调一次
+         * @param block 来源发来的高度最高的孤块
+         * @param origin 来源
+         */
+        void onOrphan(Block block, Object origin);
+
+        /**
+         * 一个有来源的命令执行完了，用来统计每个来源发来的区块是否有用
+         * @param origin 来源
+         * @param block 命令中的区块（区块链或一段区块时为最后一个区块）
+         * @param result 执行结果
+         */
+        void onResult(Object origin, Block block, AcceptResult result);
+    }
+
+    /**
+     * 命令的种类
+     */
+    private enum Kind {
+        /**
+         * 单个区块
+         */
+        BLOCK,
+        /**
+         * 从创世区块开始的整条候选区块链
+         */
+        CHAIN,
+        /**
+         * 按高度连续的一段区块（区块同步）
+         */
+        RANGE
+    }
+
+    /**
+     * 命令
+     */
+    private static final class Command {
+
+        private final Kind kind;
+
+        private final Block block;
+
+        private final List<Block> chain;
+
+        /**
+         * 来源（通常是对方节点的连接），本地挖出的区块为 null
+         */
+        private final Object origin;
+
+        private final CompletableFuture<AcceptResult> result = new CompletableFuture<AcceptResult>();
+
+        Command(Kind kind, Block block, List<Block> chain, Object origin) {
+            this.kind = kind;
+            this.block = block;
+            this.chain = chain;
+            this.origin = origin;
+        }
+    }
+
+    private final BlockChain blockChain;
+
+    private final Listener listener;
+
+    private final BlockingQueue<Command> queue;
+
+    /**
+     * 管理线程：唯一修改区块链的线程
+     */
+    private final Thread worker;
+
+    /**
+     * 已执行的命令数
+     */
+    private final AtomicLong processedCount = new AtomicLong();
+
+    /**
+     * 已执行的批次数
+     */
+    private final AtomicLong batchCount = new AtomicLong();
+
+    /**
+     * 队列满时丢弃的命令数
+     */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * 构造方法：队列容量取系统属性 blockchain.chain.queueCapacity，默认 1024
+     * @param blockChain 区块链
+     * @param listener 区块链事件的回调，为 null 时不发布事件
+     */
+    public ChainManager(BlockChain blockChain, Listener listener) {
+        this(blockChain, Integer.getInteger(QUEUE_CAPACITY_PROPERTY, 1024), listener);
+    }
+
+    /**
+     * 构造方法
+     * @param blockChain 区块链
+     * @param capacity 命令队列容量
+     * @param listener 区块链事件的回调，为 null 时不发布事件
+     */
+    public ChainManager(BlockChain blockChain, int capacity, Listener listener) {
+        this.blockChain = blockChain;
+        this.listener = listener;
+        this.queue = new ArrayBlockingQueue<Command>(capacity);
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "chain-manager");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public BlockChain getBlockChain() {
+        return blockChain;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * 提交其他节点发来的区块，队列满时丢弃
+     * @param block 区块
+     * @param origin 来源
+     * @return 是否已放入队列
+     */
+    public boolean offerBlock(Block block, Object origin) {
+        return offer(new Command(Kind.BLOCK, block, null, origin));
+    }
+
+    /**
+     * 提交其他节点发来的区块链，比本地区块链长时尝试替换，队列满时丢弃
+     * @param blocks 区块链
+     * @param origin 来源
+     * @return 是否已放入队列
+     */
+    public boolean offerChain(List<Block> blocks, Object origin) {
+        return offer(new Command(Kind.CHAIN, null, blocks, origin));
+    }
+
+    /**
+     * 提交从其他节点同步到的一段区块，依次接收（追加、保存为侧链或切换分支），队列满时丢弃
+     * @param blocks 按高度连续的区块
+     * @param origin 来源
+     * @return 处理结果（整段区块中影响最大的结果），被丢弃时返回 null
+     */
+    public CompletableFuture<AcceptResult> offerRange(List<Block> blocks, Object origin) {
+        Command command = new Command(Kind.RANGE, null, blocks, origin);
+        return offer(command) ? command.result : null;
+    }
+
+    /**
+     * 提交本地挖出的区块，队列满时等待
+     * @param block 区块
+     * @return 处理结果
+     * @throws InterruptedException
+     */
+    public CompletableFuture<AcceptResult> submitBlock(Block block) throws InterruptedException {
+        Command command = new Command(Kind.BLOCK, block, null, null);
+        queue.put(command);
+        return command.result;
+    }
+
+    /**
+     * 挖出下一个区块并追加到区块链末尾
+     * 挖矿在调用线程上进行，只有追加交给管理线程；挖出的区块在追加前已经过时，则在新的最新区块上重新挖。
+     * @param data 区块中的数据
+     * @return 成功追加的新区块
+     * @throws InterruptedException
+     */
+    public Block mineBlock(String data) throws InterruptedException {
+        while (true) {
+            Block block = blockChain.generateNextBlock(data);
+            AcceptResult result;
+            try {
+                result = submitBlock(block).get();
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException("追加区块失败", ex.getCause());
+            }
+            if (result == AcceptResult.EXTENDED) {
+                return block;
+            }
+            blockChain.recordStaleBlock();
+            System.out.println("挖出的区块已过时，重新挖矿");
+        }
+    }
+
+    private boolean offer(Command command) {
+        if (queue.offer(command)) {
+            return true;
+        }
+        droppedCount.incrementAndGet();
+        System.out.println("区块链命令队列已满，丢弃来自其他节点的区块");
+        return false;
+    }
+
+    private void loop() {
+        List<Command> batch = new ArrayList<Command>(MAX_BATCH);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            process(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * 依次执行一批命令，最后统一发布事件
+     */
+    private void process(List<Command> batch) {
+        String previousTip = blockChain.getLastBlock().getHash();
+        Map<Object, Block> orphans = new LinkedHashMap<Object, Block>();
+        for (Command command : batch) {
+            AcceptResult result;
+            try {
+                switch (command.kind) {
+                    case CHAIN:
+                        result = offerChain(command.chain);
+                        break;
+                    case RANGE:
+                        result = acceptRange(command.chain);
+                        break;
+                    default:
+                        result = blockChain.acceptBlock(command.block);
+                        break;
+                }
+            } catch (Exception ex) {
+                System.out.println("处理区块链命令异常");
+                ex.printStackTrace();
+                command.result.completeExceptionally(ex);
+                continue;
+            }
+            Block subject = command.block != null ? command.block : command.chain.get(command.chain.size() - 1);
+            if (result == AcceptResult.ORPHAN && command.origin != null) {
+                Block known = orphans.get(command.origin);
+                if (known == null || known.getIndex() < subject.getIndex()) {
+                    orphans.put(command.origin, subject);
+                }
+            }
+            command.result.complete(result);
+            if (listener != null && command.origin != null) {
+                try {
+                    listener.onResult(command.origin, subject, result);
+                } catch (Exception ex) {
+                    System.out.println("区块链事件回调异常");
+                    ex.printStackTrace();
+                }
+            }
+        }
+        processedCount.addAndGet(batch.size());
+        batchCount.incrementAndGet();
+        if (listener == null) {
+            return;
+        }
+        Block tip = blockChain.getLastBlock();
+        try {
+            if (!tip.getHash().equals(previousTip)) {
+                listener.onTipChanged(tip);
+            }
+            for (Map.Entry<Object, Block> entry : orphans.entrySet()) {
+                listener.onOrphan(entry.getValue(), entry.getKey());
+            }
+        } catch (Exception ex) {
+            System.out.println("区块链事件回调异常");
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * 依次接收一段区块，遇到不合法或找不到父区块的区块时停止
+     * @return 有区块导致重组时返回 REORGANIZED，否则有区块追加到主链时返回 EXTENDED，
+     * 停止时返回 INVALID 或 ORPHAN，其余情况返回 SIDE_BRANCH 或 DUPLICATE
+     */
+    private AcceptResult acceptRange(List<Block> blocks) {
+        AcceptResult outcome = AcceptResult.DUPLICATE;
+        for (Block block : blocks) {
+            AcceptResult result = blockChain.acceptBlock(block);
+            if (result == AcceptResult.INVALID || result == AcceptResult.ORPHAN) {
+                return result;
+            }
+            if (result == AcceptResult.REORGANIZED
+                    || (result == AcceptResult.EXTENDED && outcome != AcceptResult.REORGANIZED)
+                    || (result == AcceptResult.SIDE_BRANCH && outcome == AcceptResult.DUPLICATE)) {
+                outcome = result;
+            }
+        }
+        System.out.println("同步到 " + blocks.size() + " 个区块，结果：" + outcome);
+        return outcome;
+    }
+
+    /**
+     * 处理其他节点发来的区块链：能直接追加的只追加最后一个区块，否则尝试替换本地区块链
+     * @return 追加时返回 EXTENDED，替换后返回 REORGANIZED，不比本地长时返回 DUPLICATE，替换失败时返回 INVALID
+     */
+    private AcceptResult offerChain(List<Block> blocks) {
+        Block received = blocks.get(blocks.size() - 1);
+        Block tip = blockChain.getLastBlock();
+        if (received.getIndex() <= tip.getIndex()) {
+            System.out.println("对方的区块链不比本地的更长，不作处理");
+            return AcceptResult.DUPLICATE;
+        }
+        if (tip.getHash().equals(received.getPreviousHash()) && tip.getIndex() + 1 == received.getIndex()) {
+            System.out.println("在本地区块链末尾追加接收到的新区块");
+            return blockChain.addBlock(received) ? AcceptResult.EXTENDED : AcceptResult.INVALID;
+        }
+        System.out.println("替换本地的区块列表");
+        blockChain.replaceChain(blocks);
+        return blockChain.getLastBlock().getHash().equals(tip.getHash())
+                ? AcceptResult.INVALID : AcceptResult.REORGANIZED;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // 模拟 4 个节点同时转发同一批区块：直接在各自线程上调用 acceptBlock（每追加一个区块广播一次），
+        // 与交给区块链管理器批量处理（每批最多广播一次）对比耗时和广播次数
+        int count = 5000;
+        int peers = 4;
+        final List<Block> blocks = new ArrayList<Block>(count);
+        blockchain.miner.ParallelMiner miner = new blockchain.miner.ParallelMiner();
+        Block previous = new BlockChain(miner).getLastBlock();
+        for (int i = 1; i <= count; i++) {
+            Block block = new Block(i, previous.getTimestamp() + 1, previous.getHash(), "gossip-" + i);
+            miner.mine(block);
+            blocks.add(block);
+            previous = block;
+        }
+
+        final BlockChain direct = new BlockChain(new blockchain.miner.ParallelMiner(1));
+        final AtomicLong directBroadcasts = new AtomicLong();
+        long start = System.nanoTime();
+        runPeers(peers, new Runnable() {
+            @Override
+            public void run() {
+                for (Block block : blocks) {
+                    AcceptResult result = direct.acceptBlock(block);
+                    if (result == AcceptResult.EXTENDED || result == AcceptResult.REORGANIZED) {
+                        directBroadcasts.incrementAndGet();
+                    }
+                }
+            }
+        });
+        long directNanos = System.nanoTime() - start;
+
+        final BlockChain managed = new BlockChain(new blockchain.miner.ParallelMiner(1));
+        final AtomicLong managedBroadcasts = new AtomicLong();
+        final CountDownLatch reached = new CountDownLatch(1);
+        final int height = count;
+        final ChainManager manager = new ChainManager(managed, count * peers, new Listener() {
+            @Override
+            public void onTipChanged(Block tip) {
+                managedBroadcasts.incrementAndGet();
+                if (tip.getIndex() == height) {
+                    reached.countDown();
+                }
+            }
+
+            @Override
+            public void onOrphan(Block block, Object origin) {
+            }
+
+            @Override
+            public void onResult(Object origin, Block block, AcceptResult result) {
+            }
+        });
+        start = System.nanoTime();
+        runPeers(peers, new Runnable() {
+            @Override
+            public void run() {
+                for (Block block : blocks) {
+                    manager.offerBlock(block, Thread.currentThread());
+                }
+            }
+        });
+        reached.await();
+        long managedNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("直接调用：%d ms，广播 %d 次", directNanos / 1000000, directBroadcasts.get()));
+        System.out.println(String.format("区块链管理器：%d ms，广播 %d 次，%d 批，丢弃 %d 条",
+                managedNanos / 1000000, managedBroadcasts.get(), manager.getBatchCount(), manager.getDroppedCount()));
+    }
+
+    private static void runPeers(int peers, Runnable task) throws InterruptedException {
+        List<Thread> threads = new ArrayList<Thread>(peers);
+        for (int i = 0; i < peers; i++) {
+            Thread thread = new Thread(task, "peer-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package blockchain.pojo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 并行验证区块列表
+ * 每个区块的哈希验证互不依赖，链接关系也只需要比较相邻的两个区块，
+ * 所以把区块列表切成若干段，交给 ForkJoinPool 中的多个线程同时验证。
+ * 任何一段发现不合法的区块后，其余线程跳过位于该区块之后的部分，尽快结束。
+ * 计算哈希之前先在当前线程顺序做一遍便宜的检查（索引、时间戳、链接关系、声明的哈希是否满足难度），
+ * 只对第一个没通过这些检查的区块之前的部分计算哈希，链接关系错误的区块列表几乎不花 CPU 就会被拒绝。
+ * @author fanbin
+ * @date 2020/1/16
+ */
+public class ChainValidator {
+
+    /**
+     * 区块数少于该值时直接在当前线程验证
+     */
+    private static final int PARALLEL_THRESHOLD = 256;
+
+    /**
+     * 每段最少的区块数
+     */
+    private static final int MIN_CHUNK = 64;
+
+    private ChainValidator() {
+
+    }
+
+    /**
+     * 查找第一个不合法的区块
+     * @param blocks 区块列表
+     * @param from 从哪个索引开始验证（该区块与前一个区块的关系也会被验证，所以 from 至少为 1）
+     * @return 第一个不合法区块在列表中的索引，全部合法时返回 -1
+     */
+    public static int findFirstInvalid(final List<Block> blocks, int from) {
+        int headerInvalid = findFirstInvalidHeader(blocks, from);
+        // 只需要对第一个检查不通过的区块之前的部分计算哈希
+        final int size = headerInvalid >= 0 ? headerInvalid : blocks.size();
+        if (size - from < PARALLEL_THRESHOLD) {
+            int invalid = scan(blocks, from, size, new AtomicInteger(Integer.MAX_VALUE));
+            return invalid >= 0 ? invalid : headerInvalid;
+        }
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int chunks = Math.max(1, Math.min(pool.getParallelism() * 4, (size - from) / MIN_CHUNK));
+        int chunkSize = (size - from + chunks - 1) / chunks;
+        // 目前发现的最小的不合法索引
+        final AtomicInteger firstInvalid = new AtomicInteger(Integer.MAX_VALUE);
+        List<Future<?>> futures = new ArrayList<Future<?>>(chunks);
+        for (int start = from; start < size; start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(size, start + chunkSize);
+            futures.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    scan(blocks, chunkStart, chunkEnd, firstInvalid);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("验证被中断", ex);
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException("验证线程异常", ex.getCause());
+            }
+        }
+        int result = firstInvalid.get();
+        return result == Integer.MAX_VALUE ? headerInvalid : result;
+    }
+
+    /**
+     * 顺序做不需要计算哈希的检查
+     * @return 第一个没通过检查的区块索引，全部通过时返回 -1
+     */
+    private static int findFirstInvalidHeader(List<Block> blocks, int from) {
+        for (int i = from; i < blocks.size(); i++) {
+            if (BlockChain.checkHeader(blocks.get(i), blocks.get(i - 1)) != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 顺序验证 [start, end) 范围内的区块，遇到不合法的区块时更新 firstInvalid
+     * @return 该范围内第一个不合法的区块索引，没有时返回 -1
+     */
+    private static int scan(List<Block> blocks, int start, int end, AtomicInteger firstInvalid) {
+        for (int i = start; i < end && i < firstInvalid.get(); i++) {
+            if (BlockChain.checkBlock(blocks.get(i), blocks.get(i - 1)) != null) {
+                int current = firstInvalid.get();
+                while (i < current && !firstInvalid.compareAndSet(current, i)) {
+                    current = firstInvalid.get();
+                }
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) {
+        // 构造一条较长的区块链，比较单线程与并行验证的耗时
+        blockchain.miner.ParallelMiner miner = new blockchain.miner.ParallelMiner();
+        BlockChain bc = new BlockChain(miner);
+        List<Block> blocks = new ArrayList<Block>(bc.getBlockChain());
+        for (int i = 1; i <= 20000; i++) {
+            Block previous = blocks.get(i - 1);
+            Block block = new Block(i, previous.getTimestamp() + 1, previous.getHash(), "data-" + i);
+            miner.mine(block);
+            blocks.add(block);
+        }
+        long start = System.nanoTime();
+        int sequential = scan(blocks, 1, blocks.size(), new AtomicInteger(Integer.MAX_VALUE));
+        long sequentialNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        int parallel = findFirstInvalid(blocks, 1);
+        long parallelNanos = System.nanoTime() - start;
+        System.out.println(String.format("单线程：%d ms（结果 %d），并行：%d ms（结果 %d），线程数 %d",
+                sequentialNanos / 1000000, sequential, parallelNanos / 1000000, parallel,
+                ForkJoinPool.commonPool().getParallelism()));
+
+        blocks.get(15000).setData("tampered");
+        System.out.println("篡改后第一个不合法的区块：" + findFirstInvalid(blocks, 1));
+
+        // 链接关系错误时不计算哈希就能拒绝
+        blocks.get(15000).setData("data-15000");
+        blocks.get(10).setPreviousHash(blocks.get(12).getHash());
+        start = System.nanoTime();
+        int unlinked = findFirstInvalid(blocks, 1);
+        System.out.println(String.format("链接关系错误的区块：%d，耗时 %.2f ms", unlinked, (System.nanoTime() - start) / 1e6));
+    }
+}
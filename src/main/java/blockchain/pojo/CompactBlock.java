@@ -0,0 +1,356 @@
+package blockchain.pojo;
+
+import com.alibaba.fastjson.JSON;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 区块的紧凑二进制表示，既用于内存中保存冷数据，也用于落盘和网络传输
+ * 格式（大端序）：
+ * <pre>
+ * [1 字节标志][4 字节 index][8 字节 timestamp][8 字节 nonce]
+ * [32 字节 hash][32 字节 previousHash]
+ * [4 字节数据长度][UTF-8 数据]
+ * [可选：不是 64 位十六进制的 hash / previousHash，各为 4 字节长度 + UTF-8]
+ * </pre>
+ * 合法区块的哈希都是 64 位小写十六进制，以 32 字节原始值保存；创世区块的 previousHash（"0"）
+ * 之类的特殊值通过标志位放在末尾，保证与 Block 之间可以无损转换。
+ * @author fanbin
+ * @date 2020/1/15
+ */
+public final class CompactBlock {
+
+    /**
+     * 固定长度的头部（含数据长度字段）
+     */
+    public static final int HEADER_SIZE = 1 + 4 + 8 + 8 + 32 + 32 + 4;
+
+    /**
+     * 标志位：hash 不是 64 位十六进制
+     */
+    private static final int FLAG_RAW_HASH_STRING = 1;
+
+    /**
+     * 标志位：previousHash 不是 64 位十六进制
+     */
+    private static final int FLAG_RAW_PREVIOUS_HASH_STRING = 1 << 1;
+
+    /**
+     * 标志位：data 为 null
+     */
+    private static final int FLAG_NULL_DATA = 1 << 2;
+
+    /**
+     * 标志位：hash 为 null
+     */
+    private static final int FLAG_NULL_HASH = 1 << 3;
+
+    /**
+     * 标志位：previousHash 为 null
+     */
+    private static final int FLAG_NULL_PREVIOUS_HASH = 1 << 4;
+
+    private static final int HASH_OFFSET = 1 + 4 + 8 + 8;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final byte[] bytes;
+
+    private CompactBlock(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * 把区块编码为紧凑表示
+     * @param block 区块
+     * @return 紧凑表示
+     */
+    public static CompactBlock of(Block block) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize(block));
+        encode(block, buffer);
+        return new CompactBlock(buffer.array());
+    }
+
+    /**
+     * 包装已编码的字节（不复制）
+     * @param bytes 编码后的字节
+     * @return 紧凑表示
+     */
+    public static CompactBlock wrap(byte[] bytes) {
+        if (bytes.length < HEADER_SIZE) {
+            throw new IllegalArgumentException("区块数据长度不足：" + bytes.length);
+        }
+        return new CompactBlock(bytes);
+    }
+
+    /**
+     * 计算区块编码后的字节数
+     * @param block 区块
+     * @return 字节数
+     */
+    public static int encodedSize(Block block) {
+        int size = HEADER_SIZE + utf8Length(block.getData());
+        if (!isRawHash(block.getHash())) {
+            size += 4 + utf8Length(block.getHash());
+        }
+        if (!isRawHash(block.getPreviousHash())) {
+            size += 4 + utf8Length(block.getPreviousHash());
+        }
+        return size;
+    }
+
+    /**
+     * 把区块编码写入缓冲区
+     * @param block 区块
+     * @param buffer 目标缓冲区，剩余空间不少于 encodedSize(block)
+     */
+    public static void encode(Block block, ByteBuffer buffer) {
+        String hash = block.getHash();
+        String previousHash = block.getPreviousHash();
+        String data = block.getData();
+        int flags = 0;
+        if (!isRawHash(hash)) {
+            flags |= hash == null ? FLAG_NULL_HASH : FLAG_RAW_HASH_STRING;
+        }
+        if (!isRawHash(previousHash)) {
+            flags |= previousHash == null ? FLAG_NULL_PREVIOUS_HASH : FLAG_RAW_PREVIOUS_HASH_STRING;
+        }
+        if (data == null) {
+            flags |= FLAG_NULL_DATA;
+        }
+        buffer.put((byte) flags);
+        buffer.putInt(block.getIndex());
+        buffer.putLong(block.getTimestamp());
+        buffer.putLong(block.getNonce());
+        putHash(buffer, (flags & (FLAG_RAW_HASH_STRING | FLAG_NULL_HASH)) == 0 ? hash : null);
+        putHash(buffer, (flags & (FLAG_RAW_PREVIOUS_HASH_STRING | FLAG_NULL_PREVIOUS_HASH)) == 0 ? previousHash : null);
+        putString(buffer, data);
+        if ((flags & FLAG_RAW_HASH_STRING) != 0) {
+            putString(buffer, hash);
+        }
+        if ((flags & FLAG_RAW_PREVIOUS_HASH_STRING) != 0) {
+            putString(buffer, previousHash);
+        }
+    }
+
+    /**
+     * 从缓冲区的当前位置解码一个区块，解码后缓冲区位置移到该区块之后
+     * @param buffer 缓冲区（堆内、堆外或内存映射均可）
+     * @return 区块
+     */
+    public static Block decode(ByteBuffer buffer) {
+        int flags = buffer.get();
+        Block block = new Block();
+        block.setIndex(buffer.getInt());
+        block.setTimestamp(buffer.getLong());
+        block.setNonce(buffer.getLong());
+        String hash = getHash(buffer);
+        String previousHash = getHash(buffer);
+        String data = getString(buffer);
+        if ((flags & FLAG_RAW_HASH_STRING) != 0) {
+            hash = getString(buffer);
+        } else if ((flags & FLAG_NULL_HASH) != 0) {
+            hash = null;
+        }
+        if ((flags & FLAG_RAW_PREVIOUS_HASH_STRING) != 0) {
+            previousHash = getString(buffer);
+        } else if ((flags & FLAG_NULL_PREVIOUS_HASH) != 0) {
+            previousHash = null;
+        }
+        block.setHash(hash);
+        block.setPreviousHash(previousHash);
+        block.setData((flags & FLAG_NULL_DATA) != 0 ? null : data);
+        return block;
+    }
+
+    /**
+     * 只读取区块哈希，不解码数据部分
+     * @param buffer 缓冲区，当前位置为区块的起始位置（读取后位置不变）
+     * @return 区块哈希
+     */
+    public static String peekHash(ByteBuffer buffer) {
+        int start = buffer.position();
+        int flags = buffer.get(start);
+        if ((flags & (FLAG_RAW_HASH_STRING | FLAG_NULL_HASH)) == 0) {
+            char[] chars = new char[64];
+            for (int i = 0; i < 32; i++) {
+                int b = buffer.get(start + HASH_OFFSET + i);
+                chars[i * 2] = HEX_DIGITS[(b >> 4) & 0x0F];
+                chars[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+            }
+            return new String(chars);
+        }
+        return decode(buffer.duplicate()).getHash();
+    }
+
+    public int getIndex() {
+        return ByteBuffer.wrap(bytes).getInt(1);
+    }
+
+    public long getTimestamp() {
+        return ByteBuffer.wrap(bytes).getLong(5);
+    }
+
+    public long getNonce() {
+        return ByteBuffer.wrap(bytes).getLong(13);
+    }
+
+    public String getHash() {
+        return peekHash(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * 编码后的字节数
+     * @return
+     */
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * 编码后的字节（内部数组，不要修改）
+     * @return
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * 转换为 Block 对象（用于 JSON 接口等）
+     * @return
+     */
+    public Block toBlock() {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    private static boolean isRawHash(String hash) {
+        if (hash == null || hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < 64; i++) {
+            char c = hash.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void putHash(ByteBuffer buffer, String hash) {
+        if (hash == null) {
+            buffer.position(buffer.position() + 32);
+            return;
+        }
+        for (int i = 0; i < 32; i++) {
+            buffer.put((byte) ((Character.digit(hash.charAt(i * 2), 16) << 4)
+                    | Character.digit(hash.charAt(i * 2 + 1), 16)));
+        }
+    }
+
+    private static String getHash(ByteBuffer buffer) {
+        char[] chars = new char[64];
+        for (int i = 0; i < 32; i++) {
+            int b = buffer.get();
+            chars[i * 2] = HEX_DIGITS[(b >> 4) & 0x0F];
+            chars[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    private static void putString(ByteBuffer buffer, String str) {
+        if (str == null) {
+            buffer.putInt(0);
+            return;
+        }
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("区块数据长度错误：" + length);
+        }
+        if (buffer.hasArray()) {
+            String str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                    StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return str;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int utf8Length(String str) {
+        if (str == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < str.length()
+                    && Character.isLowSurrogate(str.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public static void main(String[] args) {
+        // 对比 JSON 与紧凑表示每个区块占用的字节数，以及堆上对象的大小
+        int count = 100000;
+        List<Block> blocks = new ArrayList<Block>(count);
+        String previousHash = "000c81784691c7bb8bacab6affb23312fd707bf0463e9afc217ce1a32ab3a4aa";
+        for (int i = 0; i < count; i++) {
+            Block block = new Block(i, 1578000000000L + i, previousHash, "payload-" + i);
+            block.setNonce(i * 31L);
+            block.setHash(blockchain.util.HashUtil.getSHA256(block.originalString()));
+            blocks.add(block);
+            previousHash = block.getHash();
+        }
+
+        long jsonBytes = 0;
+        long compactBytes = 0;
+        for (Block block : blocks) {
+            jsonBytes += JSON.toJSONString(block).getBytes(StandardCharsets.UTF_8).length;
+            compactBytes += encodedSize(block);
+            if (!of(block).toBlock().equals(block)) {
+                throw new IllegalStateException("编码前后不一致：" + block);
+            }
+        }
+        System.out.println("JSON 序列化，每个区块字节数：" + jsonBytes / count);
+        System.out.println("紧凑表示，每个区块字节数：" + compactBytes / count);
+
+        Runtime runtime = Runtime.getRuntime();
+        List<Object> holder = new ArrayList<Object>(count);
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        for (Block block : blocks) {
+            holder.add(JSON.parseObject(JSON.toJSONString(block), Block.class));
+        }
+        System.gc();
+        long pojoHeap = runtime.totalMemory() - runtime.freeMemory() - before;
+        holder.clear();
+        System.gc();
+        before = runtime.totalMemory() - runtime.freeMemory();
+        for (Block block : blocks) {
+            holder.add(of(block));
+        }
+        System.gc();
+        long compactHeap = runtime.totalMemory() - runtime.freeMemory() - before;
+        System.out.println("Block 对象，每个区块堆内存字节数（约）：" + pojoHeap / count);
+        System.out.println("CompactBlock，每个区块堆内存字节数（约）：" + compactHeap / count);
+    }
+}
@@ -0,0 +1,226 @@
+package blockchain.store;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntPredicate;
+
+/**
+ * 区块哈希索引：区块哈希 -> 区块高度
+ * 不保存 64 个字符的哈希字符串，只把哈希的前 8 个字节作为 long 键保存在开放寻址的原始类型数组中。
+ * 不同哈希的前 8 个字节可能相同，所以查找时由调用方再用完整哈希确认候选高度。
+ * 修改由 StampedLock 的写锁保护；查找先用乐观读收集候选高度，期间有修改时退回到读锁，
+ * 确认候选高度的回调在锁外执行。
+ * @author fanbin
+ * @date 2020/1/13
+ */
+public class BlockHashIndex {
+
+    /**
+     * 空槽位
+     */
+    private static final int EMPTY = -1;
+
+    private static final int[] NO_CANDIDATES = new int[0];
+
+    private final StampedLock lock = new StampedLock();
+
+    private long[] keys;
+
+    private int[] heights;
+
+    private int size;
+
+    public BlockHashIndex() {
+        keys = new long[64];
+        heights = new int[64];
+        Arrays.fill(heights, EMPTY);
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 添加索引项
+     * @param hash 区块哈希
+     * @param height 区块高度
+     */
+    public void put(String hash, int height) {
+        long stamp = lock.writeLock();
+        try {
+            if ((size + 1) * 2 > heights.length) {
+                resize(heights.length * 2);
+            }
+            insert(keyOf(hash), height);
+            size++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 删除索引项
+     * @param hash 区块哈希
+     * @param height 区块高度
+     */
+    public void remove(String hash, int height) {
+        long key = keyOf(hash);
+        long stamp = lock.writeLock();
+        try {
+            int mask = heights.length - 1;
+            for (int slot = slotOf(key, mask); heights[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (keys[slot] == key && heights[slot] == height) {
+                    deleteSlot(slot);
+                    size--;
+                    return;
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 查找区块高度
+     * @param hash 区块哈希
+     * @param matches 确认候选高度上的区块哈希是否确实等于 hash
+     * @return 区块高度，找不到时返回 -1
+     */
+    public int find(String hash, IntPredicate matches) {
+        for (int height : candidates(keyOf(hash))) {
+            if (matches.test(height)) {
+                return height;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 清空索引
+     */
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            Arrays.fill(heights, EMPTY);
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 收集键相同的候选高度：先乐观读，期间有修改时再加读锁重新收集
+     */
+    private int[] candidates(long key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int[] result = probe(key);
+            if (lock.validate(stamp)) {
+                return result;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return probe(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 沿探测链收集候选高度；乐观读时数组可能正在被修改，探测次数以容量为上限，结果由调用方校验
+     */
+    private int[] probe(long key) {
+        long[] keys = this.keys;
+        int[] heights = this.heights;
+        if (keys.length != heights.length) {
+            return NO_CANDIDATES;
+        }
+        int mask = heights.length - 1;
+        int[] result = NO_CANDIDATES;
+        int slot = slotOf(key, mask);
+        for (int probes = 0; probes < heights.length && heights[slot] != EMPTY; probes++) {
+            if (keys[slot] == key) {
+                result = Arrays.copyOf(result, result.length + 1);
+                result[result.length - 1] = heights[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return result;
+    }
+
+    private void insert(long key, int height) {
+        int mask = heights.length - 1;
+        int slot = slotOf(key, mask);
+        while (heights[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        heights[slot] = height;
+    }
+
+    /**
+     * 线性探测的删除：把后面仍属于这条探测链的元素前移，不留墓碑
+     */
+    private void deleteSlot(int slot) {
+        int mask = heights.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (heights[next] != EMPTY) {
+            int home = slotOf(keys[next], mask);
+            // home 不在 (hole, next] 区间内时，该元素可以移到空洞处
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                heights[hole] = heights[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        heights[hole] = EMPTY;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldHeights = heights;
+        keys = new long[capacity];
+        heights = new int[capacity];
+        Arrays.fill(heights, EMPTY);
+        for (int i = 0; i < oldHeights.length; i++) {
+            if (oldHeights[i] != EMPTY) {
+                insert(oldKeys[i], oldHeights[i]);
+            }
+        }
+    }
+
+    private static int slotOf(long key, int mask) {
+        // 哈希值本身已经足够随机，再混合一次以兼容非十六进制的键
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    /**
+     * 取哈希前 16 个十六进制字符（8 个字节）作为键，不创建子字符串
+     */
+    static long keyOf(String hash) {
+        if (hash == null) {
+            return 0;
+        }
+        if (hash.length() < 16) {
+            return hash.hashCode();
+        }
+        long key = 0;
+        for (int i = 0; i < 16; i++) {
+            int digit = Character.digit(hash.charAt(i), 16);
+            if (digit < 0) {
+                return hash.hashCode();
+            }
+            key = (key << 4) | digit;
+        }
+        return key;
+    }
+}
@@ -0,0 +1,607 @@
+package blockchain.store;
+
+import blockchain.pojo.Block;
+import blockchain.pojo.CompactBlock;
+import com.alibaba.fastjson.JSON;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 只追加的区块日志
+ * 区块按高度顺序写入分段文件 segment-{起始高度}.log，每条记录的格式为：
+ * [4 字节长度][4 字节 CRC32][区块数据]，区块数据为 CompactBlock 紧凑二进制格式
+ * （早期以 '{' 开头的 JSON 记录仍可读取）。
+ * 读取时使用内存映射；启动时逐条校验记录，把最后一个分段末尾写了一半的记录截掉。
+ * 检查点（checkpoint.json）之前的记录在启动时只读取长度，不再校验 CRC。
+ * @author fanbin
+ * @date 2020/1/11
+ */
+public class BlockLog implements Closeable {
+
+    /**
+     * 配置数据目录的系统属性名
+     */
+    public static final String DATA_DIR_PROPERTY = "blockchain.data.dir";
+
+    /**
+     * 配置持久化策略的系统属性名：per-block / per-batch / interval
+     */
+    public static final String FSYNC_PROPERTY = "blockchain.store.fsync";
+
+    /**
+     * 配置 interval 策略下 fsync 间隔（毫秒）的系统属性名
+     */
+    public static final String FSYNC_INTERVAL_PROPERTY = "blockchain.store.fsyncIntervalMs";
+
+    /**
+     * 记录头：长度 + CRC32
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * 单条记录的最大长度，超过则认为记录已损坏
+     */
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String CHECKPOINT_FILE = "checkpoint.json";
+
+    /**
+     * 日志分段
+     */
+    private static class Segment {
+
+        /**
+         * 分段中第一个区块的高度
+         */
+        final long baseHeight;
+
+        final File file;
+
+        final FileChannel channel;
+
+        /**
+         * 分段中每个区块记录的起始位置
+         */
+        long[] offsets = new long[64];
+
+        /**
+         * 分段中的区块数
+         */
+        int count;
+
+        /**
+         * 分段的有效长度
+         */
+        long size;
+
+        /**
+         * 只读内存映射，长度不够时重新映射
+         */
+        MappedByteBuffer mapped;
+
+        Segment(long baseHeight, File file) throws IOException {
+            this.baseHeight = baseHeight;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        void addOffset(long offset) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+        }
+
+        ByteBuffer view(long offset) throws IOException {
+            if (mapped == null || mapped.capacity() < size) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = mapped.duplicate();
+            buffer.position((int) offset);
+            return buffer;
+        }
+
+        void truncate(long newSize) throws IOException {
+            channel.truncate(newSize);
+            size = newSize;
+            mapped = null;
+        }
+    }
+
+    private final File dir;
+
+    private final long segmentMaxBytes;
+
+    private final DurabilityPolicy policy;
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * 当前的检查点，没有时为 null
+     */
+    private Checkpoint checkpoint;
+
+    /**
+     * 是否有尚未 fsync 的写入
+     */
+    private boolean dirty;
+
+    /**
+     * interval 策略下的后台 fsync 线程
+     */
+    private ScheduledExecutorService flusher;
+
+    /**
+     * 按系统属性创建区块日志，未配置数据目录时返回 null（只在内存中保存区块链）
+     * @return 区块日志
+     * @throws IOException
+     */
+    public static BlockLog fromSystemProperties() throws IOException {
+        String dir = System.getProperty(DATA_DIR_PROPERTY);
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        DurabilityPolicy policy = DurabilityPolicy.parse(System.getProperty(FSYNC_PROPERTY, "per-batch"));
+        long interval = Long.getLong(FSYNC_INTERVAL_PROPERTY, 1000L);
+        return new BlockLog(new File(dir), 64L * 1024 * 1024, policy, interval);
+    }
+
+    /**
+     * 打开（或创建）区块日志，并执行崩溃恢复
+     * @param dir 数据目录
+     * @param segmentMaxBytes 单个分段的最大字节数
+     * @param policy 持久化策略
+     * @param fsyncIntervalMillis interval 策略下的 fsync 间隔
+     * @throws IOException
+     */
+    public BlockLog(File dir, long segmentMaxBytes, DurabilityPolicy policy, long fsyncIntervalMillis)
+            throws IOException {
+        this.dir = dir;
+        this.segmentMaxBytes = segmentMaxBytes;
+        this.policy = policy;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("无法创建数据目录：" + dir);
+        }
+        checkpoint = readCheckpoint();
+        recover();
+        if (policy == DurabilityPolicy.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("block-log-flusher")
+                    .setDaemon(true)
+                    .build());
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sync();
+                    } catch (IOException ex) {
+                        System.out.println("区块日志 fsync 失败");
+                        ex.printStackTrace();
+                    }
+                }
+            }, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 崩溃恢复：逐条校验所有分段中的记录，在第一条损坏的记录处截断，并删除其后的分段
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles();
+        List<File> segmentFiles = new ArrayList<File>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+                    segmentFiles.add(file);
+                }
+            }
+        }
+        // 文件名中的起始高度是定长的，按名称排序即按高度排序
+        Collections.sort(segmentFiles);
+
+        boolean broken = false;
+        for (File file : segmentFiles) {
+            if (broken) {
+                System.out.println("删除损坏位置之后的分段：" + file);
+                if (!file.delete()) {
+                    throw new IOException("无法删除分段：" + file);
+                }
+                continue;
+            }
+            Segment segment = new Segment(parseBaseHeight(file), file);
+            if (segment.baseHeight != size()) {
+                segment.channel.close();
+                broken = true;
+                System.out.println("分段起始高度不连续，删除：" + file);
+                if (!file.delete()) {
+                    throw new IOException("无法删除分段：" + file);
+                }
+                continue;
+            }
+            long fileSize = segment.channel.size();
+            long trusted = checkpoint == null ? -1 : checkpoint.getHeight();
+            long validSize = scan(segment, fileSize, trusted);
+            if (validSize < fileSize) {
+                System.out.println("截断不完整的记录：" + file + "，位置：" + validSize);
+                segment.truncate(validSize);
+                segment.channel.force(true);
+                broken = true;
+            }
+            segment.size = validSize;
+            segments.add(segment);
+        }
+        if (checkpoint != null && checkpoint.getHeight() >= size()) {
+            System.out.println("检查点超出了日志中的区块，忽略：" + checkpoint);
+            clearCheckpoint();
+        }
+    }
+
+    /**
+     * 扫描分段中的记录
+     * @param trustedHeight 不超过该高度的记录只读取长度，不校验 CRC
+     * @return 有效记录的结束位置
+     */
+    private long scan(Segment segment, long fileSize, long trustedHeight) throws IOException {
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        while (position + HEADER_SIZE <= fileSize) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE || position + HEADER_SIZE + length > fileSize) {
+                break;
+            }
+            if (segment.baseHeight + segment.count <= trustedHeight) {
+                segment.addOffset(position);
+                position += HEADER_SIZE + length;
+                continue;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(segment.channel, body, position + HEADER_SIZE);
+            crc.reset();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            segment.addOffset(position);
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("意外的文件结尾");
+            }
+        }
+    }
+
+    private static long parseBaseHeight(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private Segment newSegment(long baseHeight) throws IOException {
+        File file = new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, baseHeight, SEGMENT_SUFFIX));
+        Segment segment = new Segment(baseHeight, file);
+        segment.truncate(0);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * 日志中的区块数
+     * @return
+     */
+    public synchronized long size() {
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        Segment last = segments.get(segments.size() - 1);
+        return last.baseHeight + last.count;
+    }
+
+    /**
+     * 追加一个区块，区块高度必须等于当前日志中的区块数
+     * per-batch 策略下单独追加的一个区块就是一批，同样 fsync 一次
+     * @param block 区块
+     * @throws IOException
+     */
+    public synchronized void append(Block block) throws IOException {
+        write(block);
+        if (policy != DurabilityPolicy.INTERVAL) {
+            sync();
+        }
+    }
+
+    /**
+     * 追加一批区块
+     * @param blocks 区块列表
+     * @throws IOException
+     */
+    public synchronized void appendAll(List<Block> blocks) throws IOException {
+        for (Block block : blocks) {
+            write(block);
+            if (policy == DurabilityPolicy.PER_BLOCK) {
+                sync();
+            }
+        }
+        if (policy == DurabilityPolicy.PER_BATCH) {
+            sync();
+        }
+    }
+
+    private void write(Block block) throws IOException {
+        long height = size();
+        if (block.getIndex() != height) {
+            throw new IllegalArgumentException("区块高度不连续，期望 " + height + "，实际 " + block.getIndex());
+        }
+        byte[] body = encode(block);
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || (segment.count > 0 && segment.size + HEADER_SIZE + body.length > segmentMaxBytes)) {
+            // 切换分段前，先把旧分段中尚未落盘的写入 fsync
+            if (segment != null && dirty) {
+                segment.channel.force(false);
+            }
+            segment = newSegment(height);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + body.length);
+        record.putInt(body.length).putInt((int) crc.getValue()).put(body);
+        record.flip();
+        long position = segment.size;
+        while (record.hasRemaining()) {
+            segment.channel.write(record, position + record.position());
+        }
+        segment.addOffset(position);
+        segment.size = position + HEADER_SIZE + body.length;
+        dirty = true;
+    }
+
+    /**
+     * 读取指定高度的区块
+     * @param height 高度
+     * @return 区块
+     * @throws IOException
+     */
+    public synchronized Block read(long height) throws IOException {
+        return decode(record(height));
+    }
+
+    /**
+     * 读取指定高度的区块，返回紧凑表示（数据从内存映射中复制出来）
+     * @param height 高度
+     * @return 区块的紧凑表示
+     * @throws IOException
+     */
+    public synchronized CompactBlock readCompact(long height) throws IOException {
+        ByteBuffer buffer = record(height);
+        if (isJson(buffer)) {
+            return CompactBlock.of(decode(buffer));
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return CompactBlock.wrap(bytes);
+    }
+
+    /**
+     * 只读取指定高度的区块哈希，不解码区块数据
+     * @param height 高度
+     * @return 区块哈希
+     * @throws IOException
+     */
+    public synchronized String readHash(long height) throws IOException {
+        ByteBuffer buffer = record(height);
+        return isJson(buffer) ? decode(buffer).getHash() : CompactBlock.peekHash(buffer);
+    }
+
+    /**
+     * 定位区块记录的数据部分
+     */
+    private ByteBuffer record(long height) throws IOException {
+        Segment segment = segmentOf(height);
+        ByteBuffer buffer = segment.view(segment.offsets[(int) (height - segment.baseHeight)]);
+        int length = buffer.getInt();
+        buffer.getInt();
+        buffer.limit(buffer.position() + length);
+        return buffer;
+    }
+
+    /**
+     * 读取全部区块
+     * @return 区块列表
+     * @throws IOException
+     */
+    public synchronized List<Block> readAll() throws IOException {
+        long size = size();
+        List<Block> blocks = new ArrayList<Block>((int) size);
+        for (long height = 0; height < size; height++) {
+            blocks.add(read(height));
+        }
+        return blocks;
+    }
+
+    /**
+     * 截断日志，只保留高度小于 height 的区块
+     * @param height 保留的区块数
+     * @throws IOException
+     */
+    public synchronized void truncate(long height) throws IOException {
+        if (height >= size()) {
+            return;
+        }
+        while (!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            if (last.baseHeight < height || (last.baseHeight == height && segments.size() == 1)) {
+                int keep = (int) (height - last.baseHeight);
+                long newSize = keep == last.count ? last.size : last.offsets[keep];
+                last.truncate(newSize);
+                last.count = keep;
+                break;
+            }
+            segments.remove(segments.size() - 1);
+            last.channel.close();
+            if (!last.file.delete()) {
+                throw new IOException("无法删除分段：" + last.file);
+            }
+        }
+        dirty = true;
+        sync();
+        if (checkpoint != null && checkpoint.getHeight() >= height) {
+            clearCheckpoint();
+        }
+    }
+
+    public synchronized Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * 把指定高度的区块记为检查点（先 fsync，保证检查点之前的区块都已落盘）
+     * 检查点先写入临时文件并 fsync，再原子地改名，最后 fsync 目录，
+     * 崩溃后看到的检查点文件要么是旧的，要么是完整的新文件，不会是空文件。
+     * @param height 区块高度
+     * @param hash 区块哈希
+     * @throws IOException
+     */
+    public synchronized void writeCheckpoint(long height, String hash) throws IOException {
+        if (height >= size()) {
+            throw new IllegalArgumentException("检查点超出了日志中的区块：" + height);
+        }
+        sync();
+        Checkpoint next = new Checkpoint(height, hash);
+        File temp = new File(dir, CHECKPOINT_FILE + ".tmp");
+        ByteBuffer content = ByteBuffer.wrap(JSON.toJSONString(next).getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), new File(dir, CHECKPOINT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        checkpoint = next;
+    }
+
+    /**
+     * fsync 日志目录，让改名、新建的文件在崩溃后仍然存在
+     * 有的平台（例如 Windows）不能打开目录，这时只能依赖文件系统自己的顺序。
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            System.out.println("无法 fsync 目录：" + dir + "，" + ex.getMessage());
+        }
+    }
+
+    private Checkpoint readCheckpoint() throws IOException {
+        File file = new File(dir, CHECKPOINT_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return JSON.parseObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8),
+                    Checkpoint.class);
+        } catch (Exception ex) {
+            System.out.println("检查点文件损坏，忽略：" + file);
+            return null;
+        }
+    }
+
+    private void clearCheckpoint() throws IOException {
+        Files.deleteIfExists(new File(dir, CHECKPOINT_FILE).toPath());
+        checkpoint = null;
+    }
+
+    /**
+     * 把尚未落盘的写入 fsync 到磁盘
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        if (dirty && !segments.isEmpty()) {
+            segments.get(segments.size() - 1).channel.force(false);
+            dirty = false;
+        }
+    }
+
+    private Segment segmentOf(long height) {
+        if (height < 0 || height >= size()) {
+            throw new IndexOutOfBoundsException("区块高度超出范围：" + height);
+        }
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments.get(mid).baseHeight <= height) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return segments.get(low);
+    }
+
+    private static byte[] encode(Block block) {
+        return CompactBlock.of(block).bytes();
+    }
+
+    private static Block decode(ByteBuffer buffer) {
+        if (!isJson(buffer)) {
+            return CompactBlock.decode(buffer);
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return JSON.parseObject(new String(bytes, StandardCharsets.UTF_8), Block.class);
+    }
+
+    /**
+     * 早期版本以 JSON 格式写入区块，CompactBlock 的标志字节不会是 '{'
+     */
+    private static boolean isJson(ByteBuffer buffer) {
+        return buffer.get(buffer.position()) == '{';
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        sync();
+        for (Segment segment : segments) {
+            segment.channel.close();
+        }
+        segments.clear();
+    }
+}
@@ -0,0 +1,327 @@
+package blockchain.store;
+
+import blockchain.pojo.Block;
+import blockchain.pojo.CompactBlock;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * 区块存储（单写者），对外发布不可变的快照
+ * 最近的若干个区块保存在堆上（热数据）；配置了区块日志时，更早的区块只保存在日志中（冷数据），
+ * 读取时通过有容量上限的 LRU 缓存按需加载。热数据和冷数据缓存中保存的都是紧凑表示（CompactBlock），
+ * 哈希以 32 字节原始值保存，读取时才转换成 Block 对象；只有最新区块另外保留一个 Block 对象，
+ * 频繁读取最新区块时不需要转换。没有区块日志时所有区块都是热数据。
+ * <p>
+ * 热数据保存在数组中：追加时只写入任何已发布快照都看不到的位置，截断或降级时换一个新数组，
+ * 因此已发布的快照永远不会看到被修改的内容，读者不需要加锁。
+ * 截断到冷数据时（深度重组），被截掉的冷数据区块保留在截断记录中，旧快照仍然读到截断前的区块。
+ * 所有修改方法只能由同一时刻的一个写者调用（由 BlockChain 的写锁保证）。
+ * @author fanbin
+ * @date 2020/1/14
+ */
+public class BlockStore {
+
+    /**
+     * 配置堆上保留多少个最新区块的系统属性名
+     */
+    public static final String HOT_BLOCKS_PROPERTY = "blockchain.store.hotBlocks";
+
+    /**
+     * 配置冷数据缓存容量（区块数）的系统属性名
+     */
+    public static final String CACHE_BLOCKS_PROPERTY = "blockchain.store.cacheBlocks";
+
+    /**
+     * 堆上保留的最新区块数，没有区块日志时不限制
+     */
+    private final int hotCapacity;
+
+    /**
+     * 热数据：hot[i] 是高度为 hotStart + i 的区块
+     */
+    private CompactBlock[] hot;
+
+    /**
+     * 最新区块，没有区块时为 null
+     */
+    private Block last;
+
+    /**
+     * 热数据中第一个区块的高度
+     */
+    private int hotStart;
+
+    /**
+     * 区块总数
+     */
+    private int size;
+
+    /**
+     * 冷数据缓存：(冷数据版本, 区块高度) -> 区块的紧凑表示，没有区块日志时为 null
+     */
+    private final LoadingCache<Long, CompactBlock> cold;
+
+    /**
+     * 当前冷数据版本的截断记录（尚未截断）
+     */
+    private volatile Truncation truncation = new Truncation(0);
+
+    /**
+     * 创建只在内存中保存的区块存储
+     */
+    public BlockStore() {
+        this.hotCapacity = Integer.MAX_VALUE;
+        this.hot = new CompactBlock[64];
+        this.cold = null;
+    }
+
+    /**
+     * 按系统属性创建建立在区块日志之上的存储：默认堆上保留 1024 个区块，冷数据缓存 4096 个区块
+     * @param log 区块日志
+     * @return 区块存储
+     * @throws IOException
+     */
+    public static BlockStore fromSystemProperties(BlockLog log) throws IOException {
+        return new BlockStore(log,
+                Integer.getInteger(HOT_BLOCKS_PROPERTY, 1024),
+                Integer.getInteger(CACHE_BLOCKS_PROPERTY, 4096));
+    }
+
+    /**
+     * 创建建立在区块日志之上的存储：内容即区块日志中的全部区块，最新的 hotCapacity 个区块加载到堆上
+     * 每个区块都必须先写入区块日志，再加入存储。
+     * @param log 区块日志
+     * @param hotCapacity 堆上保留的最新区块数
+     * @param cacheCapacity 冷数据缓存容量
+     * @throws IOException
+     */
+    public BlockStore(final BlockLog log, int hotCapacity, int cacheCapacity) throws IOException {
+        if (hotCapacity < 1) {
+            throw new IllegalArgumentException("热数据容量必须大于 0");
+        }
+        this.hotCapacity = hotCapacity;
+        this.hot = new CompactBlock[hotCapacity * 2];
+        this.cold = CacheBuilder.newBuilder()
+                .maximumSize(cacheCapacity)
+                .recordStats()
+                .build(new CacheLoader<Long, CompactBlock>() {
+                    @Override
+                    public CompactBlock load(Long key) throws IOException {
+                        return log.readCompact((int) (key & 0xFFFFFFFFL));
+                    }
+                });
+        size = (int) log.size();
+        hotStart = Math.max(0, size - hotCapacity);
+        for (int height = hotStart; height < size; height++) {
+            hot[height - hotStart] = log.readCompact(height);
+        }
+        last = size == 0 ? null : hot[size - 1 - hotStart].toBlock();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 追加区块
+     * @param block 区块
+     */
+    public void add(Block block) {
+        if (block.getIndex() != size) {
+            throw new IllegalArgumentException("区块高度不连续，期望 " + size + "，实际 " + block.getIndex());
+        }
+        int count = size - hotStart;
+        if (count == hot.length) {
+            if (cold != null && count >= hotCapacity) {
+                // 热数据达到两倍容量时，把较早的一半降为冷数据，均摊到每次追加是 O(1)
+                int demoted = count - hotCapacity;
+                CompactBlock[] next = new CompactBlock[hot.length];
+                System.arraycopy(hot, demoted, next, 0, hotCapacity);
+                hot = next;
+                hotStart += demoted;
+            } else {
+                hot = Arrays.copyOf(hot, hot.length * 2);
+            }
+        }
+        // 这个位置在所有已发布的快照之外，直接写入
+        hot[size - hotStart] = CompactBlock.of(block);
+        last = block;
+        size++;
+    }
+
+    /**
+     * 截断，只保留高度小于 newSize 的区块
+     * 配置了区块日志时，需要在改写日志之前调用：截断到冷数据时先更新冷数据版本，
+     * 改写日志期间旧快照读到的冷数据都会被识别出来，不会与新内容混在一起。
+     * @param newSize 保留的区块数
+     */
+    public void truncate(int newSize) {
+        if (newSize >= size) {
+            return;
+        }
+        if (newSize >= hotStart) {
+            // 旧快照仍然引用旧数组，换一个新数组，之后的追加不会影响旧快照
+            hot = Arrays.copyOf(hot, hot.length);
+            Arrays.fill(hot, newSize - hotStart, size - hotStart, null);
+        } else {
+            // 保留被截掉的冷数据，再开始新的冷数据版本
+            Block[] removed = new Block[hotStart - newSize];
+            for (int height = newSize; height < hotStart; height++) {
+                removed[height - newSize] = readCold(height, truncation);
+            }
+            Truncation current = truncation;
+            current.cut = newSize;
+            current.next = new Truncation(current.epoch + 1);
+            current.removed = removed;
+            truncation = current.next;
+            hot = new CompactBlock[hot.length];
+            hotStart = newSize;
+            // 旧版本的缓存项不会再被读取
+            cold.invalidateAll();
+        }
+        size = newSize;
+        if (newSize == 0) {
+            last = null;
+        } else if (newSize - 1 >= hotStart) {
+            last = hot[newSize - 1 - hotStart].toBlock();
+        } else {
+            last = readCold(newSize - 1, truncation);
+        }
+    }
+
+    /**
+     * 获取当前内容的不可变快照，O(1)
+     * @return 快照
+     */
+    public List<Block> snapshot() {
+        return new Snapshot(hot, hotStart, size, last, truncation);
+    }
+
+    /**
+     * 堆上的区块数
+     * @return
+     */
+    public int hotSize() {
+        return size - hotStart;
+    }
+
+    /**
+     * 冷数据缓存的命中统计，没有区块日志时返回 null
+     * @return
+     */
+    public CacheStats cacheStats() {
+        return cold == null ? null : cold.stats();
+    }
+
+    /**
+     * 读取某个冷数据版本中的区块
+     * 从快照所在版本开始沿截断记录向后查找：某次截断截掉了这个高度时，读取截断记录中保留的区块；
+     * 之后一直没有截断到这个高度时，从区块日志读取。
+     */
+    private Block readCold(int height, Truncation truncation) {
+        while (true) {
+            Block[] removed = truncation.removed;
+            if (removed == null) {
+                CompactBlock block;
+                try {
+                    block = cold.get((truncation.epoch << 32) | height);
+                } catch (Exception ex) {
+                    throw new UncheckedIOException("读取区块失败：" + height,
+                            ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex));
+                }
+                // 读取期间没有发生截断，日志中的内容就是这个版本的内容；否则重新查找
+                if (truncation.removed == null) {
+                    return block.toBlock();
+                }
+                continue;
+            }
+            if (height >= truncation.cut) {
+                return removed[height - truncation.cut];
+            }
+            truncation = truncation.next;
+        }
+    }
+
+    /**
+     * 截断记录：一个冷数据版本结束时截掉的冷数据区块
+     * removed 最后写入，读者看到 removed 不为 null 时，cut 和 next 也已经可见。
+     */
+    private static final class Truncation {
+
+        /**
+         * 冷数据版本
+         */
+        final long epoch;
+
+        /**
+         * 截断位置
+         */
+        int cut;
+
+        /**
+         * 下一个冷数据版本
+         */
+        Truncation next;
+
+        /**
+         * 被截掉的冷数据区块：removed[i] 是高度为 cut + i 的区块，尚未截断时为 null
+         */
+        volatile Block[] removed;
+
+        Truncation(long epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * 不可变快照
+     */
+    private class Snapshot extends AbstractList<Block> implements RandomAccess {
+
+        private final CompactBlock[] hot;
+
+        private final int hotStart;
+
+        private final int size;
+
+        private final Block last;
+
+        private final Truncation truncation;
+
+        Snapshot(CompactBlock[] hot, int hotStart, int size, Block last, Truncation truncation) {
+            this.hot = hot;
+            this.hotStart = hotStart;
+            this.size = size;
+            this.last = last;
+            this.truncation = truncation;
+        }
+
+        @Override
+        public Block get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("区块高度超出范围：" + index);
+            }
+            if (index == size - 1) {
+                return last;
+            }
+            if (index >= hotStart) {
+                return hot[index - hotStart].toBlock();
+            }
+            return readCold(index, truncation);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
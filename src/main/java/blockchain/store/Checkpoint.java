@@ -0,0 +1,53 @@
+package blockchain.store;
+
+/**
+ * 检查点：记录一个已经验证并落盘的区块的高度和哈希
+ * 启动时，检查点及其之前的区块直接从日志中加载，不再重新计算哈希。
+ * @author fanbin
+ * @date 2020/1/12
+ */
+public class Checkpoint {
+
+    /**
+     * 区块高度
+     */
+    private long height;
+
+    /**
+     * 区块哈希
+     */
+    private String hash;
+
+    public Checkpoint() {
+
+    }
+
+    public Checkpoint(long height, String hash) {
+        this.height = height;
+        this.hash = hash;
+    }
+
+    public long getHeight() {
+        return height;
+    }
+
+    public void setHeight(long height) {
+        this.height = height;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    @Override
+    public String toString() {
+        return "Checkpoint{" +
+                "height=" + height +
+                ", hash='" + hash + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,33 @@
+package blockchain.store;
+
+/**
+ * 区块日志的持久化策略（何时调用 fsync）
+ * @author fanbin
+ * @date 2020/1/11
+ */
+public enum DurabilityPolicy {
+
+    /**
+     * 每写入一个区块 fsync 一次：最安全，吞吐最低
+     */
+    PER_BLOCK,
+
+    /**
+     * 每写入一批区块（例如替换区块链时的整段区块）fsync 一次，单独追加的一个区块也算一批
+     */
+    PER_BATCH,
+
+    /**
+     * 由后台线程按固定时间间隔 fsync：吞吐最高，宕机时可能丢失最后一个间隔内的区块
+     */
+    INTERVAL;
+
+    /**
+     * 解析配置值，忽略大小写，支持 per-block 这样的写法
+     * @param value 配置值
+     * @return 持久化策略
+     */
+    public static DurabilityPolicy parse(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
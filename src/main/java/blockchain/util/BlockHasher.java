@@ -0,0 +1,167 @@
+package blockchain.util;
+
+import blockchain.pojo.Block;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 区块哈希计算器（挖矿和验证的热路径）
+ * 每个线程持有一个实例：复用同一个 MessageDigest、原像缓冲区和摘要数组。
+ * 原像与 Block.originalString() 完全一致（index + previousHash + timestamp + data + nonce），
+ * 前缀部分每个区块只编码一次，每次尝试只把 nonce 的十进制数字就地写入缓冲区末尾，
+ * 因此每次尝试几乎不产生新对象。
+ * @author fanbin
+ * @date 2020/1/8
+ */
+public class BlockHasher {
+
+    /**
+     * long 的十进制表示最多 20 个字符（含负号）
+     */
+    private static final int MAX_NONCE_DIGITS = 20;
+
+    private static final ThreadLocal<BlockHasher> LOCAL = new ThreadLocal<BlockHasher>() {
+        @Override
+        protected BlockHasher initialValue() {
+            return new BlockHasher();
+        }
+    };
+
+    /**
+     * 获取当前线程的哈希计算器
+     * @return
+     */
+    public static BlockHasher current() {
+        return LOCAL.get();
+    }
+
+    private final MessageDigest digest;
+
+    /**
+     * 原像缓冲区：前缀 + nonce 数字
+     */
+    private byte[] buffer = new byte[256];
+
+    /**
+     * 前缀（不含 nonce）的字节数
+     */
+    private int prefixLength;
+
+    /**
+     * 最近一次计算的摘要，每次计算都会被覆盖
+     */
+    private final byte[] out = new byte[32];
+
+    private BlockHasher() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * 把区块除 nonce 以外的原像写入缓冲区
+     * @param block 区块
+     * @return 当前对象
+     */
+    public BlockHasher reset(Block block) {
+        byte[] prefix = ("" + block.getIndex() + block.getPreviousHash() + block.getTimestamp() + block.getData())
+                .getBytes(StandardCharsets.UTF_8);
+        if (buffer.length < prefix.length + MAX_NONCE_DIGITS) {
+            buffer = new byte[prefix.length + MAX_NONCE_DIGITS];
+        }
+        System.arraycopy(prefix, 0, buffer, 0, prefix.length);
+        prefixLength = prefix.length;
+        return this;
+    }
+
+    /**
+     * 用给定的 nonce 计算哈希
+     * @param nonce nonce 值
+     * @return 32 字节的摘要（内部数组，下次计算时会被覆盖）
+     */
+    public byte[] hash(long nonce) {
+        int length = prefixLength + writeDigits(nonce, buffer, prefixLength);
+        digest.update(buffer, 0, length);
+        try {
+            digest.digest(out, 0, out.length);
+        } catch (DigestException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return out;
+    }
+
+    /**
+     * 判断区块的哈希值与原像是否一致（不生成十六进制字符串）
+     * @param block 区块
+     * @return
+     */
+    public boolean matches(Block block) {
+        return HashUtil.matchesHex(reset(block).hash(block.getNonce()), block.getHash());
+    }
+
+    /**
+     * 把 long 的十进制数字写入缓冲区，结果与 String.valueOf(long) 相同
+     * @return 写入的字节数
+     */
+    private static int writeDigits(long value, byte[] dest, int offset) {
+        if (value == 0) {
+            dest[offset] = '0';
+            return 1;
+        }
+        int length = 0;
+        // 统一按负数处理，避免 Long.MIN_VALUE 取反溢出
+        long v = value < 0 ? value : -value;
+        for (long t = v; t != 0; t /= 10) {
+            length++;
+        }
+        if (value < 0) {
+            length++;
+            dest[offset] = '-';
+        }
+        int pos = offset + length;
+        while (v != 0) {
+            dest[--pos] = (byte) ('0' - (v % 10));
+            v /= 10;
+        }
+        return length;
+    }
+
+    public static void main(String[] args) {
+        // 对比旧的字符串原像与新的热路径：结果必须一致，并观察每次尝试的内存分配量
+        Block block = new Block(1, System.currentTimeMillis(), "0", "hello");
+        BlockHasher hasher = BlockHasher.current().reset(block);
+        for (long nonce : new long[]{0, 7, 10, 123456789L, -42, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            block.setNonce(nonce);
+            String expected = HashUtil.getSHA256(block.originalString());
+            String actual = HashUtil.toHex(hasher.hash(nonce));
+            System.out.println(nonce + " -> " + expected.equals(actual));
+        }
+
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        int rounds = 1000000;
+
+        long before = bean.getThreadAllocatedBytes(id);
+        for (int i = 0; i < rounds; i++) {
+            block.setNonce(i);
+            HashUtil.getSHA256(block.originalString());
+        }
+        long stringBytes = bean.getThreadAllocatedBytes(id) - before;
+
+        before = bean.getThreadAllocatedBytes(id);
+        for (int i = 0; i < rounds; i++) {
+            hasher.hash(i);
+        }
+        long rawBytes = bean.getThreadAllocatedBytes(id) - before;
+
+        System.out.println("字符串原像，每次尝试分配字节数：" + stringBytes / rounds);
+        System.out.println("字节原像，每次尝试分配字节数：" + rawBytes / rounds);
+    }
+}
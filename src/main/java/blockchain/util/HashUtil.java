@@ -1,6 +1,8 @@
 package blockchain.util;
 
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * 计算哈希值的工具类
@@ -9,6 +11,22 @@ import java.security.MessageDigest;
  */
 public class HashUtil {
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * 每个线程复用一个 MessageDigest，避免每次调用都 getInstance
+     */
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    };
+
     private HashUtil() {
 
     }
@@ -19,33 +37,60 @@ public class HashUtil {
      * @return 计算结果
      */
     public static String getSHA256(String str) {
-        MessageDigest messageDigest;
-        String encodeStr = "";
-        try {
-            messageDigest = MessageDigest.getInstance("SHA-256");
-            messageDigest.update(str.getBytes("UTF-8"));
-            encodeStr = byte2Hex(messageDigest.digest());
-        } catch (Exception ex) {
-            System.out.println("出现异常了");
-        }
-        return encodeStr;
+        return toHex(SHA256.get().digest(str.getBytes(StandardCharsets.UTF_8)));
     }
+
     /**
      * 把 byte 数组，转换为十六进制数字的字符串
      * @param bytes byte 数组
      * @return 十六进制数字字符串
      */
-    private static String byte2Hex(byte[] bytes) {
-        StringBuilder builder = new StringBuilder();
-        String temp;
-        for(int i = 0; i < bytes.length; i++) {
-            temp = Integer.toHexString(bytes[i] & 0xFF);
-            if (temp.length() == 1) {
-                builder.append("0");
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 统计摘要开头连续为 0 的十六进制位数（半字节数）
+     * @param digest 摘要
+     * @return 前导 0 的个数
+     */
+    public static int leadingZeroNibbles(byte[] digest) {
+        int count = 0;
+        for (byte b : digest) {
+            if (b == 0) {
+                count += 2;
+                continue;
+            }
+            if ((b & 0xF0) == 0) {
+                count++;
+            }
+            break;
+        }
+        return count;
+    }
+
+    /**
+     * 判断摘要与十六进制字符串是否表示同一个值（不分配新对象）
+     * @param digest 摘要
+     * @param hex 十六进制字符串（小写）
+     * @return
+     */
+    public static boolean matchesHex(byte[] digest, String hex) {
+        if (hex == null || hex.length() != digest.length * 2) {
+            return false;
+        }
+        for (int i = 0; i < digest.length; i++) {
+            if (hex.charAt(i * 2) != HEX_DIGITS[(digest[i] >> 4) & 0x0F]
+                    || hex.charAt(i * 2 + 1) != HEX_DIGITS[digest[i] & 0x0F]) {
+                return false;
             }
-            builder.append(temp);
         }
-        return builder.toString();
+        return true;
     }
 
     public static void main(String[] args) {
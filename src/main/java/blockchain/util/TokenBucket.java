@@ -0,0 +1,68 @@
+package blockchain.util;
+
+/**
+ * 令牌桶限流
+ * 令牌按固定速率补充，最多积累到桶的容量；每次操作消耗若干令牌，令牌不足时拒绝。
+ * 容量决定了允许的突发量，速率决定了长期的平均上限。
+ * @author fanbin
+ * @date 2020/1/24
+ */
+public class TokenBucket {
+
+    /**
+     * 每秒补充的令牌数
+     */
+    private final double ratePerSecond;
+
+    /**
+     * 桶的容量
+     */
+    private final double capacity;
+
+    private double tokens;
+
+    private long lastRefill;
+
+    /**
+     * 构造方法，桶初始是满的
+     * @param ratePerSecond 每秒补充的令牌数
+     * @param capacity 桶的容量
+     */
+    public TokenBucket(double ratePerSecond, double capacity) {
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * 尝试消耗令牌
+     * @param amount 消耗的令牌数
+     * @return 令牌足够时消耗并返回 true，否则不消耗并返回 false
+     */
+    public synchronized boolean tryAcquire(double amount) {
+        refill();
+        if (tokens < amount) {
+            return false;
+        }
+        tokens -= amount;
+        return true;
+    }
+
+    /**
+     * 检查令牌是否足够，不消耗
+     * 需要同时从几个桶中消耗令牌时，先逐个检查，都足够时再消耗，避免一个桶消耗了、另一个桶却不够。
+     * @param amount 需要的令牌数
+     * @return 令牌足够时返回 true
+     */
+    public synchronized boolean canAcquire(double amount) {
+        refill();
+        return tokens >= amount;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * ratePerSecond);
+        lastRefill = now;
+    }
+}